@@ -45,10 +45,67 @@ public class Solver {
         return utility;
     }
 
+    /**
+     * Applies the policy to an MDP problem and returns the utility. Works as the
+     * previous method, but all the steps are carried out on the compiled transition
+     * matrix. The policy is given as the row of the matrix assigned to each state.
+     */
+    public static double applyPolicy(TransitionMatrix model, int initialState, int[] policyRows, double gamma) {
+        int currentState, newState;
+        int nextRow;
+        double utility; // Total utility
+        double powGamma = 1.0; // Power of gamma.
+        int step = 0;
+        // Fixes the initial state.
+        currentState = initialState;
+        // Adds R_0.
+        utility = model.rewards[currentState];
+        // While the currentState is not final moves.
+        while (!model.finals[currentState] && step < maxSteps) {
+            nextRow = policyRows[currentState];
+            newState = model.genNextState(nextRow);
+            powGamma = powGamma * gamma;
+            // Adds boths de rewards of the state and transition.
+            utility = utility + powGamma * (model.rewards[newState] + model.getTransitionReward(currentState, nextRow, newState));
+            // Updates the current state.
+            currentState = newState;
+            // New step
+            step++;
+        }
+        return utility;
+    }
+
     /**
      * Applies the policy to the problem and returns the utility.
      */
     public static double evalPolicy(LearningProblem problem, Policy policy, double gamma) {
+        // MDP problems are evaluated on the compiled model, if the policy covers all the non final states.
+        if (problem instanceof MDPLearningProblem) {
+            MDPLearningProblem problemMDP = (MDPLearningProblem) problem;
+            TransitionMatrix model = problemMDP.getTransitionMatrix();
+            int initialState = problemMDP.getStateIndex(problem.initialState());
+            int[] policyRows = new int[model.numStates];
+            boolean compiledPolicy = initialState >= 0;
+            for (int stateIdx = 0; stateIdx < model.numStates && compiledPolicy; stateIdx++) {
+                if (!model.finals[stateIdx]) {
+                    // Indexed policies are read without hashing the states.
+                    Action action = (policy instanceof IndexedPolicy) ? ((IndexedPolicy) policy).getAction(stateIdx) : policy.getAction(problemMDP.getState(stateIdx));
+                    policyRows[stateIdx] = (action == null) ? -1 : model.getRow(stateIdx, action);
+                    compiledPolicy = policyRows[stateIdx] >= 0;
+                }
+            }
+            if (compiledPolicy) {
+                double averageUtility = 0;
+                for (int it = 0; it < numEvaluations; it++) {
+                    averageUtility += applyPolicy(model, initialState, policyRows, gamma);
+                }
+                return averageUtility / numEvaluations;
+            }
+        }
+        // Model free problems indexing their states step all the executions at once.
+        if (problem instanceof MFLearningProblem && ((MFLearningProblem) problem).getNumStateIndexes() > 0) {
+            return evalPolicyBatch((MFLearningProblem) problem, policy, gamma);
+        }
         double averageUtility = 0;
         for (int it = 0; it < numEvaluations; it++) {
             State initialState = problem.initialState();
@@ -57,6 +114,67 @@ public class Solver {
         return averageUtility / numEvaluations;
     }
 
+    /**
+     * Applies a policy to a model free problem numEvaluations times and returns the average utility. 
+     * Works as applyPolicy, but all the executions advance one step at a time with applyActions. The
+     * action of each state is read from the policy only once. Executions reaching a state without
+     * action in the policy finish there.
+     */
+    public static double evalPolicyBatch(MFLearningProblem problem, Policy policy, double gamma) {
+        int[] policyActions = new int[problem.getNumStateIndexes()]; // Number of the action of each state (-1 if none)
+        Arrays.fill(policyActions, -2); // Not read yet
+        double[] utilities = new double[numEvaluations]; // Total utility of each execution
+        int[] executions = new int[numEvaluations]; // Executions that have not finished
+        int[] states = new int[numEvaluations], actions = new int[numEvaluations]; // State and action of each of them
+        int[] newStates = new int[numEvaluations];
+        double[] rewards = new double[numEvaluations];
+        double powGamma = 1.0; // Power of gamma.
+        int numRunning = 0;
+        for (int it = 0; it < numEvaluations; it++) {
+            State initialState = problem.initialState();
+            // Adds R_0.
+            utilities[it] = problem.getReward(initialState);
+            int stateIdx = problem.getStateIndex(initialState);
+            if (!problem.isFinal(stateIdx)) {
+                executions[numRunning] = it;
+                states[numRunning++] = stateIdx;
+            }
+        }
+        // While some execution has not reached a final state, all of them move.
+        for (int step = 0; step < maxSteps && numRunning > 0; step++) {
+            int withAction = 0;
+            for (int i = 0; i < numRunning; i++) {
+                if (policyActions[states[i]] == -2) {
+                    Action action = policy.getAction(problem.getState(states[i]));
+                    policyActions[states[i]] = (action == null) ? -1 : action.ordinal();
+                }
+                if (policyActions[states[i]] >= 0) {
+                    executions[withAction] = executions[i];
+                    states[withAction] = states[i];
+                    actions[withAction++] = policyActions[states[i]];
+                }
+            }
+            numRunning = withAction;
+            problem.applyActions(states, actions, numRunning, newStates, rewards);
+            powGamma = powGamma * gamma;
+            // Adds the rewards, and keeps the executions that are not in a final state.
+            int stillRunning = 0;
+            for (int i = 0; i < numRunning; i++) {
+                utilities[executions[i]] = utilities[executions[i]] + powGamma * rewards[i];
+                if (!problem.isFinal(newStates[i])) {
+                    executions[stillRunning] = executions[i];
+                    states[stillRunning++] = newStates[i];
+                }
+            }
+            numRunning = stillRunning;
+        }
+        double averageUtility = 0;
+        for (int it = 0; it < numEvaluations; it++) {
+            averageUtility += utilities[it];
+        }
+        return averageUtility / numEvaluations;
+    }
+
     public static void main(String[] args) {
         // The first argument is the size of the window (0 means no window)
         int sizePx = Integer.parseInt(args[0]);
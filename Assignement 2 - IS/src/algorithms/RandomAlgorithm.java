@@ -23,11 +23,11 @@ public class RandomAlgorithm extends LearningAlgorithm{
 		// Assigns the action to each state.
 		for (State state: states){	
 			// Extracts the possible actions that can be applied to the state.
-			ArrayList<Action> possibleActions = problem.getPossibleActions(state);
+			Action[] possibleActions = problem.getPossibleActionArray(state);
 			// Randomly selects the index of one of such actions
-			int selActionIdx = Utils.random.nextInt(possibleActions.size());
+			int selActionIdx = Utils.random.nextInt(possibleActions.length);
 			// Assigns the corresponding action to the state.
-			solution.setAction(state, possibleActions.get(selActionIdx));
+			solution.setAction(state, possibleActions[selActionIdx]);
 		}
 	}
     
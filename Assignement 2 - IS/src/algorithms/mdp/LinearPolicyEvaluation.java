@@ -0,0 +1,195 @@
+package algorithms.mdp;
+
+import learning.TransitionMatrix;
+
+/**
+ * Evaluates a policy by solving its Bellman equations as a sparse linear system with BiCGSTAB
+ * and a Jacobi (diagonal) preconditioner. The matrix is never built: products are calculated
+ * from the rows of the compiled transition model selected by the policy.
+ *
+ * The problems add R(s) twice, so for a non final state s with row r the equation is
+ *      U(s) = R(s) + gamma * (R(s) + gamma * sum(T(s,r,s') * (R(s,r,s') + U(s'))))
+ * which gives the system
+ *      U(s) - gamma^2 * sum(T(s,r,s') * U(s')) = (1 + gamma) * R(s) + gamma^2 * sum(T(s,r,s') * R(s,r,s'))
+ * Final states have the equation U(s) = R(s).
+ */
+class LinearPolicyEvaluation {
+
+    /**
+     * Transition model, rows of the policy and gamma.
+     */
+    private final TransitionMatrix model;
+    private final int[] policyRows;
+    private final double gamma;
+
+    /**
+     * Sums of the sets of uniform transitions of the vector being multiplied.
+     */
+    private final double[] setSums;
+
+    /**
+     * Creates the system of a policy, given the row applied in each state (-1 for final states).
+     */
+    LinearPolicyEvaluation(TransitionMatrix model, int[] policyRows, double gamma) {
+        this.model = model;
+        this.policyRows = policyRows;
+        this.gamma = gamma;
+        this.setSums = new double[model.sets.length];
+    }
+
+    /**
+     * Solves the system, starting from the given utilities, and stores the solution in them. Stops when the
+     * largest residual is lower than tolerance. Returns false if the method breaks down or does not
+     * converge in maxIterations iterations (utilities contain the last approximation).
+     */
+    boolean solve(double[] utilities, double tolerance, int maxIterations) {
+        int n = model.numStates;
+        double[] b = new double[n], diagonal = new double[n];
+        double[] r = new double[n], rHat = new double[n], p = new double[n], v = new double[n];
+        double[] y = new double[n], s = new double[n], z = new double[n], t = new double[n];
+        buildRightHandSide(b, diagonal);
+
+        /* r = b - A x */
+        multiply(utilities, r);
+        for (int i = 0; i < n; i++) {
+            r[i] = b[i] - r[i];
+            rHat[i] = r[i];
+        }
+        if (maxNorm(r) < tolerance) {
+            return true;
+        }
+
+        double rho = 1, alpha = 1, omega = 1;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            double newRho = dot(rHat, r);
+            if (newRho == 0) {
+                return false;
+            }
+            double beta = (newRho / rho) * (alpha / omega);
+            for (int i = 0; i < n; i++) {
+                p[i] = r[i] + beta * (p[i] - omega * v[i]);
+                y[i] = p[i] / diagonal[i];
+            }
+            multiply(y, v);
+            alpha = newRho / dot(rHat, v);
+            for (int i = 0; i < n; i++) {
+                s[i] = r[i] - alpha * v[i];
+            }
+            if (maxNorm(s) < tolerance) {
+                for (int i = 0; i < n; i++) {
+                    utilities[i] += alpha * y[i];
+                }
+                return true;
+            }
+            for (int i = 0; i < n; i++) {
+                z[i] = s[i] / diagonal[i];
+            }
+            multiply(z, t);
+            omega = dot(t, s) / dot(t, t);
+            for (int i = 0; i < n; i++) {
+                utilities[i] += alpha * y[i] + omega * z[i];
+                r[i] = s[i] - omega * t[i];
+            }
+            if (maxNorm(r) < tolerance) {
+                return true;
+            }
+            if (omega == 0) {
+                return false;
+            }
+            rho = newRho;
+        }
+        return false;
+    }
+
+    /**
+     * Calculates the right hand side of the system and the diagonal of the matrix (used as preconditioner).
+     */
+    private void buildRightHandSide(double[] b, double[] diagonal) {
+        double gamma2 = gamma * gamma;
+        for (int state = 0; state < model.numStates; state++) {
+            int row = policyRows[state];
+            if (row < 0) {
+                b[state] = model.rewards[state];
+                diagonal[state] = 1;
+                continue;
+            }
+            double selfProb = 0;
+            double transitionReward;
+            int set = model.rowSets[row];
+            if (set >= 0) {
+                /* Uniform rows: every reachable state of the set has the same probability */
+                int[] members = model.sets[set];
+                int excluded = model.rowExcluded[row];
+                int numReachable = (excluded < 0) ? members.length : members.length - 1;
+                /* Without reachable states (a single hole), the row is empty, as in TransitionMatrix */
+                transitionReward = (numReachable == 0) ? 0 : model.rowSetRewards[row] / numReachable;
+                for (int member = 0; member < members.length; member++) {
+                    if (member != excluded && members[member] == state) {
+                        selfProb += 1.0 / numReachable;
+                    }
+                }
+            } else {
+                transitionReward = 0;
+                for (int entry = model.rowOffsets[row]; entry < model.rowOffsets[row + 1]; entry++) {
+                    transitionReward += model.probs[entry] * model.transRewards[entry];
+                    if (model.successors[entry] == state) {
+                        selfProb += model.probs[entry];
+                    }
+                }
+            }
+            b[state] = (1 + gamma) * model.rewards[state] + gamma2 * transitionReward;
+            diagonal[state] = 1 - gamma2 * selfProb;
+        }
+    }
+
+    /**
+     * Calculates result = A x.
+     */
+    private void multiply(double[] x, double[] result) {
+        double gamma2 = gamma * gamma;
+        model.computeSetSums(x, setSums);
+        for (int state = 0; state < model.numStates; state++) {
+            int row = policyRows[state];
+            if (row < 0) {
+                result[state] = x[state];
+                continue;
+            }
+            double expected;
+            int set = model.rowSets[row];
+            if (set >= 0) {
+                int excluded = model.rowExcluded[row];
+                int numReachable = (excluded < 0) ? model.sets[set].length : model.sets[set].length - 1;
+                double sum = (excluded < 0) ? setSums[set] : setSums[set] - x[model.sets[set][excluded]];
+                expected = (numReachable == 0) ? 0 : sum / numReachable;
+            } else {
+                expected = 0;
+                for (int entry = model.rowOffsets[row]; entry < model.rowOffsets[row + 1]; entry++) {
+                    expected += model.probs[entry] * x[model.successors[entry]];
+                }
+            }
+            result[state] = x[state] - gamma2 * expected;
+        }
+    }
+
+    /**
+     * Dot product of two vectors.
+     */
+    private static double dot(double[] a, double[] b) {
+        double result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    /**
+     * Largest absolute value of a vector.
+     */
+    private static double maxNorm(double[] a) {
+        double result = 0;
+        for (double value : a) {
+            result = Math.max(result, Math.abs(value));
+        }
+        return result;
+    }
+}
@@ -1,9 +1,9 @@
 package algorithms.mdp;
 
-import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import learning.*;
-import problems.maze.MazeProblemMDP;
 
 public class PolicyIteration extends LearningAlgorithm {
 
@@ -12,6 +12,29 @@ public class PolicyIteration extends LearningAlgorithm {
      */
     private double maxDelta = 0.01;
 
+    /**
+     * Policy evaluation method: full (sweeps from zero until delta is lower than maxDelta), modified
+     * (only evaluationSweeps sweeps, starting from the utilities of the previous evaluation) or linear
+     * (solves the linear system of the policy with BiCGSTAB, see LinearPolicyEvaluation).
+     */
+    private String evaluation = "full";
+    private int evaluationSweeps = 5;
+
+    /**
+     * Maximum number of iterations of the linear solver. If it does not converge, sweeps are used.
+     */
+    private static final int MAX_LINEAR_ITERATIONS = 1000;
+
+    /**
+     * Number of threads of the policy improvement.
+     */
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Utilities of the states for the current policy (indexed by the index of the state in the problem).
+     */
+    private double[] utilities;
+
     /**
      * Learns the policy (notice that this method is protected, and called from the public method learnPolicy(LearningProblem problem, double gamma) in LearningAlgorithm.
      */
@@ -22,111 +45,179 @@ public class PolicyIteration extends LearningAlgorithm {
             System.exit(0);
         }
 
-        // Initializes the policy randomly
-        solution = new Policy();
-        Policy policyAux = new Policy();
+        MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
+        TransitionMatrix model = problemMDP.getTransitionMatrix();
+        utilities = new double[model.numStates];
+        double delta;
 
-        MazeProblemMDP problemMDP = (MazeProblemMDP) this.problem;
-        HashMap<State, Double> utilities;
+        // Initializes the policy randomly. Policies are stored as arrays indexed by state.
+        IndexedPolicy policy = new IndexedPolicy(problemMDP);
 
         /* Sets a random policy for each non-final state */
-        for (State state : problemMDP.getAllStates()) {
-            if (!problemMDP.isFinal(state)) {
-                policyAux.setAction(state, problemMDP.randomAction(state));
+        for (int stateIdx = 0; stateIdx < model.numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                policy.setAction(stateIdx, problemMDP.randomAction(problemMDP.getState(stateIdx)).ordinal());
             }
         }
 
         // Main loop of the policy iteration.
-        /* While the new policy is not the same as the previous policy, iterate */
+        /* While the improvement changes the action of some state, iterate */
+        /* In modified policy iteration, the utilities must also have converged */
+        int changedStates;
+        ForkJoinPool pool = new ForkJoinPool(numThreads); // Threads used by the policy improvement
         do {
-            solution = policyAux;
-            utilities = this.policyEvaluation(solution);
-            policyAux = this.policyImprovement(utilities);
-        } while (!solution.equals(policyAux));
+            delta = this.policyEvaluation(policy);
+            changedStates = this.policyImprovement(policy, utilities, pool);
+        } while (changedStates > 0 || (evaluation.equals("modified") && delta >= maxDelta));
+        pool.shutdown();
+        solution = policy;
     }
 
     /**
-     * Policy evaluation. Calculates the utility given the policy
+     * Policy evaluation. Calculates the utility given the policy, and stores it in utilities
+     * (indexed by the index of each state in the problem). Returns the delta of the last sweep.
      */
-    private HashMap<State, Double> policyEvaluation(Policy policy) {
+    private double policyEvaluation(IndexedPolicy policy) {
 
-        // Initializes utilities. In case of terminal states, the utility corresponds to
-        // the reward. In the remaining (most) states, utilities are zero.		
-        HashMap<State, Double> utilities = new HashMap<State, Double>();
-        HashMap<State, Double> currentUtilities;
         MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
+        TransitionMatrix model = problemMDP.getTransitionMatrix();
+        int numStates = model.numStates;
+        double gamma = problemMDP.gamma;
+        double[] currentUtilities = new double[numStates];
+        double[] auxUtilities;
+        double[] setSums = new double[model.sets.length]; // Sums of the utilities of the sets of uniform transitions
         double delta = 0;
+        boolean modified = evaluation.equals("modified");
+
+        /* Row of the compiled model corresponding to the action of the policy in each state */
+        int[] policyRows = new int[numStates];
 
-        /* Iterates through all the posible states,.. */
-        for (State state : problemMDP.getAllStates()) {
-            if (!problemMDP.isFinal(state)) {
-                utilities.put(state, (double) 0); // assigning 0 to all the non final states
+        // Initializes utilities. In case of terminal states, the utility corresponds to
+        // the reward. In the remaining (most) states, utilities are zero. Modified and linear
+        // evaluations start from the utilities of the previous one.
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                if (evaluation.equals("full")) {
+                    utilities[stateIdx] = 0; // assigning 0 to all the non final states
+                }
+                policyRows[stateIdx] = model.getRow(stateIdx, policy.getAction(stateIdx));
             } else {
-                utilities.put(state, problemMDP.getReward(state)); // or the corresponding reward -100/100 in case of a final state
+                utilities[stateIdx] = model.rewards[stateIdx]; // or the corresponding reward -100/100 in case of a final state
+                policyRows[stateIdx] = -1;
             }
         }
 
+        /* The linear system is solved with a tolerance that bounds the error of the utilities by maxDelta */
+        if (evaluation.equals("linear")) {
+            double tolerance = (gamma < 1) ? maxDelta * (1 - gamma * gamma) : maxDelta;
+            if (new LinearPolicyEvaluation(model, policyRows, gamma).solve(utilities, tolerance, MAX_LINEAR_ITERATIONS)) {
+                return 0;
+            }
+            // Otherwise, sweeps continue from the last approximation.
+        }
+
+        int sweeps = 0;
         do {
             delta = 0;
-            currentUtilities = new HashMap<State, Double>();
-            for (State state : problemMDP.getAllStates()) {
-                if (problemMDP.isFinal(state)) {
-                    currentUtilities.put(state, problemMDP.getReward(state));
+            model.computeSetSums(utilities, setSums);
+            for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+                if (model.finals[stateIdx]) {
+                    currentUtilities[stateIdx] = model.rewards[stateIdx];
                 } else{
                     /* Calculates the expected utilty for that action */
-                    double expectedUtility = problemMDP.getExpectedUtility(state, policy.getAction(state), utilities, problemMDP.gamma);
+                    double expectedUtility = model.getExpectedUtility(stateIdx, policyRows[stateIdx], utilities, setSums, gamma);
 
                     /* Obtains the new utility and updates it*/
-                    double newUtility = problemMDP.getReward(state) + problemMDP.gamma * expectedUtility;
-                    currentUtilities.put(state, newUtility); // Introduces it into the set of new utilities
+                    double newUtility = model.rewards[stateIdx] + gamma * expectedUtility;
+                    currentUtilities[stateIdx] = newUtility; // Introduces it into the set of new utilities
 
                     /* Updates delta */
-                    if (Math.abs(currentUtilities.get(state) - utilities.get(state)) > delta) {
-                        delta = Math.abs(currentUtilities.get(state) - utilities.get(state));
+                    if (Math.abs(newUtility - utilities[stateIdx]) > delta) {
+                        delta = Math.abs(newUtility - utilities[stateIdx]);
                     }
                     
                 }
             }
+            /* The old array is reused in the next sweep */
+            auxUtilities = utilities;
             utilities = currentUtilities;
-        } while (delta >= maxDelta);
+            currentUtilities = auxUtilities;
+            sweeps++;
+        } while (delta >= maxDelta && (!modified || sweeps < evaluationSweeps));
 
-        return utilities;
+        return delta;
     }
 
     /**
-     * Improves the policy given the utility
+     * Improves the policy given the utility. The policy is updated in place, in parallel over
+     * ranges of states (with the threads of the pool). Returns the number of states whose action has changed.
      */
-    private Policy policyImprovement(HashMap<State, Double> utilities) {
-        // Creates the new policy
-        Policy newPolicy = new Policy();
+    private int policyImprovement(IndexedPolicy policy, double[] utilities, ForkJoinPool pool) {
         MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
-        
-        /* Iterates through each state to find their optimal policies */
-        for (State state : problemMDP.getAllStates()) {
-            if (!problemMDP.isFinal(state)) {
-                Action optimalAction = null;
-                double expectedUtility = Double.NEGATIVE_INFINITY;
-
-                for (Action action : problemMDP.getPossibleActions(state)) {
-                    if (problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma) > expectedUtility) {
-                        expectedUtility = problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma);
-                        optimalAction = action;
+        TransitionMatrix model = problemMDP.getTransitionMatrix();
+        double[] setSums = new double[model.sets.length];
+        model.computeSetSums(utilities, setSums);
+        return pool.invoke(new ImprovementTask(policy, model, utilities, setSums, problemMDP.gamma, 0, model.numStates));
+    }
+
+    /**
+     * Improvement of the policy in a range of states. Ranges are split in halves until they are
+     * small enough, and the result is the number of states changed in both halves.
+     */
+    private static class ImprovementTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+        private static final int MIN_STATES_PER_TASK = 2048;
+
+        private final IndexedPolicy policy;
+        private final TransitionMatrix model;
+        private final double[] utilities, setSums;
+        private final double gamma;
+        private final int from, to;
+
+        ImprovementTask(IndexedPolicy policy, TransitionMatrix model, double[] utilities, double[] setSums, double gamma, int from, int to) {
+            this.policy = policy;
+            this.model = model;
+            this.utilities = utilities;
+            this.setSums = setSums;
+            this.gamma = gamma;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > MIN_STATES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                ImprovementTask left = new ImprovementTask(policy, model, utilities, setSums, gamma, from, middle);
+                left.fork();
+                int rightChanges = new ImprovementTask(policy, model, utilities, setSums, gamma, middle, to).compute();
+                return left.join() + rightChanges;
+            }
+
+            /* Iterates through each state of the range to find their optimal actions */
+            int changedStates = 0;
+            for (int stateIdx = from; stateIdx < to; stateIdx++) {
+                if (!model.finals[stateIdx]) {
+                    int optimalRow = model.bestRow(stateIdx, utilities, setSums, gamma);
+                    if (optimalRow >= 0 && policy.getActionNumber(stateIdx) != model.rowActions[optimalRow].ordinal()) {
+                        policy.replaceAction(stateIdx, model.rowActions[optimalRow].ordinal());
+                        changedStates++;
                     }
                 }
-
-                newPolicy.setAction(state, optimalAction);
             }
+            return changedStates;
         }
-
-        return newPolicy;
     }
 
     /**
-     * Sets the parameters of the algorithm.
+     * Sets the parameters of the algorithm: maxDelta [evaluation [k [threads]]]. The evaluation can be full
+     * (default), modified, which runs only k sweeps (5 by default) per evaluation, starting from
+     * the utilities of the previous one, or linear, which solves the linear system of the policy.
+     * The policy improvement is split among the given threads (by default, as many as processors).
      */
     @Override
     public void setParams(String[] args) {
-        // In this case, there is only one parameter (maxDelta).
         if (args.length > 0) {
             try {
                 maxDelta = Double.parseDouble(args[0]);
@@ -134,6 +225,31 @@ public class PolicyIteration extends LearningAlgorithm {
                 System.out.println("The value for maxDelta is not correct. Using 0.01.");
             }
         }
+        if (args.length > 1) {
+            if (args[1].equals("full") || args[1].equals("modified") || args[1].equals("linear")) {
+                evaluation = args[1];
+            } else {
+                System.out.println("The evaluation " + args[1] + " is not correct. Using full.");
+            }
+        }
+        if (args.length > 2) {
+            try {
+                evaluationSweeps = Integer.parseInt(args[2]);
+            } catch (Exception e) {
+                System.out.println("The number of sweeps is not correct. Using " + evaluationSweeps + ".");
+            }
+        }
+        if (args.length > 3) {
+            try {
+                int threads = Integer.parseInt(args[3]);
+                if (threads < 1) {
+                    throw new NumberFormatException("At least one thread is required");
+                }
+                numThreads = threads;
+            } catch (Exception e) {
+                System.out.println("The number of threads is not correct. Using " + numThreads + ".");
+            }
+        }
     }
 
     /**
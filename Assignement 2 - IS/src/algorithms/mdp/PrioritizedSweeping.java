@@ -0,0 +1,220 @@
+package algorithms.mdp;
+
+import learning.*;
+import utils.IndexedMaxHeap;
+
+/**
+ * Implements value iteration with prioritized sweeping for Markov Decision Processes. Instead
+ * of sweeping all the states, it keeps a priority queue with a bound of the Bellman residual of
+ * each state (the change of its utility if it were backed up) and always backs up the state with
+ * the highest bound. After each backup, only the residuals of its predecessors (given by the reverse
+ * index of the transition model) can change, and at most by gamma^2 * T(p,a,s) times the change of the
+ * state (gamma appears twice because the Bellman equation of the problems adds R(s) twice), so their
+ * bounds are increased by that amount, without backing them up. It stops when all the bounds are
+ * lower than maxDelta, so all the residuals are lower than maxDelta, as in ValueIteration.
+ *
+ * Sets of uniform transitions can have many owners (every hole of the maze dives into all the others),
+ * and each owner changes very little when a member does. So, instead of increasing the bounds of all
+ * the owners after each backup, the changes of the members are accumulated, and added to the owners
+ * only when they could move their residual by maxDelta, or when the queue becomes empty.
+ */
+public class PrioritizedSweeping extends LearningAlgorithm {
+
+    /**
+     * Stores the utilities for each state (indexed by the index of the state in the problem)
+     */
+    private double[] utilities;
+
+    /**
+     * Max delta. Controls convergence.
+     */
+    private double maxDelta = 0.01;
+
+    /**
+     * Number of backups done.
+     */
+    private long numBackups;
+
+    /**
+     * Variables used by the backups: transition model compiled as flat arrays, gamma and sums of
+     * the utilities of the sets of uniform transitions.
+     */
+    private TransitionMatrix model;
+    private double gamma;
+    private double[] setSums;
+
+    /**
+     * Bound of the residual of each state.
+     */
+    private double[] residuals;
+
+    /**
+     * Sum of the changes (absolute values) of the members of each set since they were added to the owners.
+     */
+    private double[] pendingSetChanges;
+
+    /**
+     * Learns the policy (notice that this method is protected, and called from the public method learnPolicy(LearningProblem problem, double gamma) in LearningAlgorithm.
+     */
+    @Override
+    protected void learnPolicy() {
+        // This algorithm only works for MDPs
+        if (!(problem instanceof MDPLearningProblem)) {
+            System.out.println("The algorithm PrioritizedSweeping can not be applied to this problem (model is not visible).");
+            System.exit(0);
+        }
+
+        MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
+        model = problemMDP.getTransitionMatrix();
+        TransitionReverseIndex reverseIndex = model.getReverseIndex();
+        int numStates = model.numStates;
+        gamma = problemMDP.gamma;
+        utilities = new double[numStates];
+        setSums = new double[model.sets.length];
+        residuals = new double[numStates];
+        pendingSetChanges = new double[model.sets.length];
+        IndexedPolicy policy = new IndexedPolicy(problemMDP);
+        solution = policy;
+        numBackups = 0;
+
+        /* Final states take their reward, and the remaining states start at 0 */
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            utilities[stateIdx] = model.finals[stateIdx] ? model.rewards[stateIdx] : 0;
+        }
+        model.computeSetSums(utilities, setSums);
+
+        /* Initially, the residuals are calculated exactly, and the states whose residual is not small enough are queued */
+        IndexedMaxHeap queue = new IndexedMaxHeap(numStates);
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                addResidual(queue, stateIdx, Math.abs(backup(stateIdx) - utilities[stateIdx]));
+            }
+        }
+
+        /* Backs up the state with the highest residual until all of them are lower than maxDelta */
+        do {
+            while (!queue.isEmpty()) {
+                int stateIdx = queue.poll();
+                double change = backup(stateIdx) - utilities[stateIdx];
+                utilities[stateIdx] += change;
+                residuals[stateIdx] = 0;
+                numBackups++;
+
+                /* The residuals of the predecessors (the state can be one of them) increase */
+                for (int pred = reverseIndex.predOffsets[stateIdx]; pred < reverseIndex.predOffsets[stateIdx + 1]; pred++) {
+                    addResidual(queue, reverseIndex.predecessors[pred], gamma * gamma * reverseIndex.predProbs[pred] * Math.abs(change));
+                }
+
+                /* Updates the sums of the sets containing the state. Changes are added to the owners when they are large enough */
+                for (int member = reverseIndex.memberOffsets[stateIdx]; member < reverseIndex.memberOffsets[stateIdx + 1]; member++) {
+                    int set = reverseIndex.memberSets[member];
+                    setSums[set] += change;
+                    pendingSetChanges[set] += Math.abs(change);
+                    if (setResidual(set) >= maxDelta) {
+                        updateOwners(queue, reverseIndex, set);
+                    }
+                }
+            }
+
+            /* Before finishing, the pending changes of the sets are added to their owners */
+            for (int set = 0; set < model.sets.length; set++) {
+                if (pendingSetChanges[set] > 0) {
+                    updateOwners(queue, reverseIndex, set);
+                }
+            }
+        } while (!queue.isEmpty());
+
+        /* Obtains the optimal policy for each state (the action with the highest expected utility) */
+        model.computeSetSums(utilities, setSums);
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                int optimalRow = model.bestRow(stateIdx, utilities, setSums, gamma);
+                if (optimalRow >= 0) {
+                    policy.setAction(stateIdx, model.rowActions[optimalRow].ordinal());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the new utility of a non final state (Bellman backup), without storing it.
+     */
+    private double backup(int stateIdx) {
+        return model.backup(stateIdx, utilities, setSums, gamma);
+    }
+
+    /**
+     * Increases the bound of the residual of a state, which is queued if it is not lower than maxDelta.
+     */
+    private void addResidual(IndexedMaxHeap queue, int stateIdx, double increase) {
+        if (model.finals[stateIdx]) {
+            return;
+        }
+        residuals[stateIdx] += increase;
+        if (residuals[stateIdx] >= maxDelta) {
+            queue.put(stateIdx, residuals[stateIdx]);
+        }
+    }
+
+    /**
+     * Bound of the change of the residuals of the owners of a set due to its pending changes
+     * (each state of the set is reached with probability 1/|reachable|).
+     */
+    private double setResidual(int set) {
+        return gamma * gamma * pendingSetChanges[set] / Math.max(1, model.sets[set].length - 1);
+    }
+
+    /**
+     * Adds the pending changes of a set to the residuals of its owners.
+     */
+    private void updateOwners(IndexedMaxHeap queue, TransitionReverseIndex reverseIndex, int set) {
+        double increase = setResidual(set);
+        pendingSetChanges[set] = 0;
+        for (int owner : reverseIndex.setOwners[set]) {
+            addResidual(queue, owner, increase);
+        }
+    }
+
+    /**
+     * Sets the parameters of the algorithm.
+     */
+    @Override
+    public void setParams(String[] args) {
+        // In this case, there is only one parameter (maxDelta).
+        if (args.length > 0) {
+            try {
+                maxDelta = Double.parseDouble(args[0]);
+            } catch (Exception e) {
+                System.out.println("The value for maxDelta is not correct. Using 0.01.");
+            }
+        }
+    }
+
+    /**
+     * Prints the results
+     */
+    public void printResults() {
+        System.out.println("Prioritized Sweeping\n");
+        System.out.println("Backups: " + numBackups + "\n");
+        System.out.println("Utilities");
+        MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
+        for (int stateIdx = 0; stateIdx < utilities.length; stateIdx++) {
+            System.out.println("\t" + problemMDP.getState(stateIdx) + "  ---> " + utilities[stateIdx]);
+        }
+        System.out.println("\nOptimal policy");
+        System.out.println(solution);
+    }
+
+    /**
+     * Main function. Allows testing the algorithm with MDPExProblem
+     */
+    public static void main(String[] args) {
+        LearningProblem mdp = new problems.mdpexample2.MDPExProblem();
+        mdp.setParams(null);
+        PrioritizedSweeping ps = new PrioritizedSweeping();
+        ps.setProblem(mdp);
+        ps.learnPolicy(mdp);
+        ps.printResults();
+    }
+
+}
@@ -1,9 +1,11 @@
 package algorithms.mdp;
 
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
 import learning.*;
-import problems.maze.*;
 
 /**
  * Implements the value iteration algorithm for Markov Decision Processes
@@ -11,15 +13,56 @@ import problems.maze.*;
 public class ValueIteration extends LearningAlgorithm {
 
     /**
-     * Stores the utilities for each state
+     * Stores the utilities for each state (indexed by the index of the state in the problem)
      */
-    private HashMap<State, Double> utilities;
+    private double[] utilities;
 
     /**
      * Max delta. Controls convergence.
      */
     private double maxDelta = 0.01;
 
+    /**
+     * Mode of the sweeps: sequential, parallel (split among several threads), gaussseidel (in place),
+     * stencil (only for problems providing a StencilSolver), async (worklist of states) or scc (strongly connected components).
+     */
+    private String mode = "sequential";
+
+    /**
+     * Number of threads of the parallel and scc modes.
+     */
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Minimum number of states swept by each parallel task.
+     */
+    private static final int MIN_STATES_PER_TASK = 2048;
+
+    /**
+     * Order of the states in the gaussseidel mode: rowmajor (order of the states in the problem),
+     * reverse or goal (increasing distance to the final states with positive reward).
+     */
+    private String order = "rowmajor";
+
+    /**
+     * Kernel of the stencil mode: scalar or vector (see StencilSolver).
+     */
+    private String kernel = "scalar";
+
+    /**
+     * Change of a successor that makes a state be backed up again in the async mode (by default, maxDelta).
+     */
+    private double threshold = -1;
+
+    /**
+     * Variables used by the sweeps: transition model compiled as flat arrays, gamma, utilities calculated
+     * in the current sweep and sums of the utilities of the sets of uniform transitions.
+     */
+    private TransitionMatrix model;
+    private double gamma;
+    private double[] currentUtilities;
+    private double[] setSums;
+
     /**
      * Learns the policy (notice that this method is protected, and called from the public method learnPolicy(LearningProblem problem, double gamma) in LearningAlgorithm.
      */
@@ -32,76 +75,372 @@ public class ValueIteration extends LearningAlgorithm {
         }
 
         /* Used variables */
-        MazeProblemMDP problemMDP = (MazeProblemMDP) this.problem; // Instance of the problem casted as MazeProblemMDP to work easier
-        utilities = new HashMap<State, Double>(); // Initialize the HashMap of utilities
-        HashMap<State, Double> currentUtilities; // Used to store the calculated utilities for the current iteration
+        MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem; // Instance of the problem casted as MDPLearningProblem to work easier
+
+        /* Some problems (such as mazes) can be solved directly on their own structures */
+        if (mode.equals("stencil")) {
+            StencilSolver stencil = problemMDP.getStencilSolver();
+            if (stencil != null) {
+                learnPolicyStencil(problemMDP, stencil);
+                return;
+            }
+            System.out.println("The mode stencil can not be applied to this problem. Using sequential.");
+        }
+
+        model = problemMDP.getTransitionMatrix(); // Transition model compiled as flat arrays
+        int numStates = model.numStates;
+        gamma = problemMDP.gamma;
+        utilities = new double[numStates]; // Initialize the array of utilities
+        currentUtilities = new double[numStates]; // Used to store the calculated utilities for the current iteration
+        double[] auxUtilities;
+        setSums = new double[model.sets.length]; // Sums of the utilities of the sets of uniform transitions
         double delta = 0;
+        IndexedPolicy policy = new IndexedPolicy(problemMDP); // The policy is stored as an array
+        solution = policy;
+        ForkJoinPool pool = (mode.equals("parallel") || mode.equals("scc")) ? new ForkJoinPool(numThreads) : null; // Threads used by the parallel sweeps
+        int[] sweepOrder = mode.equals("gaussseidel") ? sweepOrder() : null; // Order of the states in the in-place sweeps
 
         /* Iterates through all the posible states,.. */
-        for (State state : problemMDP.getAllStates()) {
-            if (!problemMDP.isFinal(state)) {
-                utilities.put(state, (double) 0); // assigning 0 to all the non final states
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                utilities[stateIdx] = 0; // assigning 0 to all the non final states
+            } else {
+                utilities[stateIdx] = model.rewards[stateIdx]; // or the corresponding reward -100/100 in case of a final state
+            }
+        }
+
+        /* In the asynchronous mode, states are backed up from a worklist until it is empty */
+        if (mode.equals("async")) {
+            backupWorklist();
+        } else if (mode.equals("scc")) {
+            solveComponents(pool);
+        } else {
+            /* Iterates until the delta converges to the set delta */
+            do{
+                model.computeSetSums(utilities, setSums);
+                if (sweepOrder != null) {
+                    delta = sweepInPlace(sweepOrder); // Utilities are updated directly
+                } else {
+                    if (pool != null) {
+                        delta = pool.invoke(new SweepTask(0, numStates)); // Each thread sweeps a range of states
+                    } else {
+                        delta = sweep(0, numStates);
+                    }
+                    /* Updates policies U <-- U' (the old array is reused in the next iteration) */
+                    auxUtilities = utilities;
+                    utilities = currentUtilities;
+                    currentUtilities = auxUtilities;
+                }
+            } while (delta >= maxDelta);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+
+        /* Obtains the optimal policy for each state (the action with the highest expected utility) */
+        model.computeSetSums(utilities, setSums);
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                int optimalRow = model.bestRow(stateIdx, utilities, setSums, gamma);
+                if (optimalRow >= 0) {
+                    policy.setAction(stateIdx, model.rowActions[optimalRow].ordinal());
+                }
+            }
+        }
+    }
+
+    /**
+     * Solves the problem with its StencilSolver, and copies its utilities and policy.
+     */
+    private void learnPolicyStencil(MDPLearningProblem problemMDP, StencilSolver stencil) {
+        utilities = stencil.solveStates(problemMDP.gamma, maxDelta, kernel.equals("vector"));
+        IndexedPolicy policy = new IndexedPolicy(problemMDP);
+        solution = policy;
+        for (int stateIdx = 0; stateIdx < utilities.length; stateIdx++) {
+            Action optimalAction = stencil.bestAction(stateIdx);
+            if (optimalAction != null) {
+                policy.setAction(stateIdx, optimalAction.ordinal());
+            }
+        }
+    }
+
+    /**
+     * Calculates the new utilities of the states from, ..., to-1 (reading utilities and writing currentUtilities).
+     * Returns the maximum change of the utilities of these states.
+     */
+    private double sweep(int from, int to) {
+        double delta = 0;
+        for (int stateIdx = from; stateIdx < to; stateIdx++) { // For each state of the range
+            if (!model.finals[stateIdx]) { // If it is not a final state
+                /* Bellman backup: reward plus the highest expected utility of the possible actions */
+                double newUtility = model.backup(stateIdx, utilities, setSums, gamma);
+                currentUtilities[stateIdx] = newUtility;
+
+                /* Updates the value of delta */
+                if (Math.abs(newUtility - utilities[stateIdx]) > delta) {
+                    delta = Math.abs(newUtility - utilities[stateIdx]);
+                }
             } else {
-                utilities.put(state, problemMDP.getReward(state)); // or the corresponding reward -100/100 in case of a final state
+                currentUtilities[stateIdx] = model.rewards[stateIdx]; // For final states, the utility is the reward of 
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Calculates the new utilities of the states in the given order, updating them in place (Gauss-Seidel),
+     * so each state already uses the new utilities of the states swept before it. The sums of the sets
+     * are kept up to date. Returns the maximum change of the utilities.
+     */
+    private double sweepInPlace(int[] sweepOrder) {
+        TransitionReverseIndex reverseIndex = model.getReverseIndex();
+        double delta = 0;
+        for (int stateIdx : sweepOrder) {
+            if (model.finals[stateIdx]) { // Final states keep their reward
+                continue;
+            }
+            double newUtility = model.backup(stateIdx, utilities, setSums, gamma);
+            double change = newUtility - utilities[stateIdx];
+            utilities[stateIdx] = newUtility;
+
+            /* Updates the sums of the sets containing the state */
+            for (int member = reverseIndex.memberOffsets[stateIdx]; member < reverseIndex.memberOffsets[stateIdx + 1]; member++) {
+                setSums[reverseIndex.memberSets[member]] += change;
+            }
+            if (Math.abs(change) > delta) {
+                delta = Math.abs(change);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Asynchronous value iteration. Utilities are updated in place, taking the states from a worklist
+     * (FIFO, each state appears at most once). Initially it contains all the non final states. The changes
+     * of the successors of each state since its last backup are accumulated (weighted by gamma and the
+     * probability of the transition), and the state is added again when they could move it by more than
+     * the threshold. The predecessors are given by the reverse index of the model. For sets of uniform transitions, the
+     * changes of the members are accumulated, and the owners are added when the accumulated change
+     * could move them by more than the threshold. It stops when the worklist is empty.
+     */
+    private void backupWorklist() {
+        TransitionReverseIndex reverseIndex = model.getReverseIndex();
+        int numStates = model.numStates;
+        double[] pendingChanges = new double[numStates];
+        double[] pendingSetChanges = new double[model.sets.length];
+        double threshold = (this.threshold >= 0) ? this.threshold : maxDelta;
+        model.computeSetSums(utilities, setSums);
+
+        /* The worklist is a circular buffer with room for all the states */
+        int[] worklist = new int[numStates];
+        boolean[] inWorklist = new boolean[numStates];
+        int head = 0, numPending = 0;
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            if (!model.finals[stateIdx]) {
+                worklist[numPending++] = stateIdx;
+                inWorklist[stateIdx] = true;
             }
         }
 
-        /* Iterates until the delta converges to the set delta */
-        do{
-            delta = 0; // Initializes delta
-            currentUtilities = new HashMap<State, Double>();
-            for (State state : problemMDP.getAllStates()) { // For each state among all possible states
-                if (!problemMDP.isFinal(state)) { // If it is not a final state
-                    double expectedUtility = Double.NEGATIVE_INFINITY;
+        while (numPending > 0) {
+            int stateIdx = worklist[head];
+            head = (head + 1) % numStates;
+            numPending--;
+            inWorklist[stateIdx] = false;
+            pendingChanges[stateIdx] = 0;
+
+            double newUtility = model.backup(stateIdx, utilities, setSums, gamma);
+            double change = newUtility - utilities[stateIdx];
+            utilities[stateIdx] = newUtility;
 
-                    /* Calculates for each possible action the expected utility */
-                    for (Action action : problemMDP.getPossibleActions(state)) {
-                        if (problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma) > expectedUtility) {
-                            expectedUtility = problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma);
+            /* Sets containing the state */
+            for (int member = reverseIndex.memberOffsets[stateIdx]; member < reverseIndex.memberOffsets[stateIdx + 1]; member++) {
+                int set = reverseIndex.memberSets[member];
+                setSums[set] += change;
+                pendingSetChanges[set] += Math.abs(change);
+                if (gamma * gamma * pendingSetChanges[set] / Math.max(1, model.sets[set].length - 1) > threshold) {
+                    pendingSetChanges[set] = 0;
+                    for (int owner : reverseIndex.setOwners[set]) {
+                        if (!inWorklist[owner] && !model.finals[owner]) {
+                            worklist[(head + numPending++) % numStates] = owner;
+                            inWorklist[owner] = true;
                         }
                     }
+                }
+            }
+
+            /* The change is accumulated in the predecessors, which are added when their accumulated change is large enough */
+            for (int pred = reverseIndex.predOffsets[stateIdx]; pred < reverseIndex.predOffsets[stateIdx + 1]; pred++) {
+                int predecessor = reverseIndex.predecessors[pred];
+                if (model.finals[predecessor]) {
+                    continue;
+                }
+                pendingChanges[predecessor] += gamma * reverseIndex.predProbs[pred] * Math.abs(change);
+                if (!inWorklist[predecessor] && pendingChanges[predecessor] > threshold) {
+                    worklist[(head + numPending++) % numStates] = predecessor;
+                    inWorklist[predecessor] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Solves the strongly connected components of the state graph in reverse topological order, so the
+     * utilities of the states reached from a component are final when it is solved, and each component
+     * converges only once. The components of each level (see TransitionComponents) can not reach each
+     * other, so they are solved in parallel.
+     *
+     * Each component is swept in place until its delta is lower than maxDelta. The sums of the sets whose
+     * node is in the component are kept up to date. The remaining sets are only read by components of
+     * higher levels, so their sums are calculated again after each level.
+     */
+    private void solveComponents(ForkJoinPool pool) {
+        TransitionComponents components = model.getComponents();
+        model.computeSetSums(utilities, setSums);
+        for (int level = 0; level < components.numLevels; level++) {
+            int from = components.levelOffsets[level], to = components.levelOffsets[level + 1];
+            if (to - from > 1) {
+                pool.invoke(new ComponentTask(components, from, to));
+            } else {
+                solveComponent(components, components.levelComponents[from]);
+            }
+            model.computeSetSums(utilities, setSums);
+        }
+    }
 
-                    /* Gets the final utility and action for that state in the current iteration */
-                    double newUtility = problemMDP.getReward(state) + problemMDP.gamma * expectedUtility;
-                    currentUtilities.put(state, newUtility);
+    /**
+     * Sweeps the states of a component in place until the maximum change is lower than maxDelta.
+     */
+    private void solveComponent(TransitionComponents components, int component) {
+        TransitionReverseIndex reverseIndex = model.getReverseIndex();
+        int first = components.componentOffsets[component], last = components.componentOffsets[component + 1];
+        double delta;
+        do {
+            delta = 0;
+            for (int i = first; i < last; i++) {
+                int stateIdx = components.componentStates[i];
+                if (model.finals[stateIdx]) { // Final states keep their reward
+                    continue;
+                }
+                double newUtility = model.backup(stateIdx, utilities, setSums, gamma);
+                double change = newUtility - utilities[stateIdx];
+                utilities[stateIdx] = newUtility;
 
-                    /* Updates the value of delta */
-                    if (Math.abs(newUtility - utilities.get(state)) > delta) {
-                        delta = Math.abs(newUtility - utilities.get(state));
+                /* Updates the sums of the sets of the component containing the state */
+                for (int member = reverseIndex.memberOffsets[stateIdx]; member < reverseIndex.memberOffsets[stateIdx + 1]; member++) {
+                    int set = reverseIndex.memberSets[member];
+                    if (components.setComponents[set] == component) {
+                        setSums[set] += change;
                     }
-                } else {
-                    currentUtilities.put(state, problemMDP.getReward(state)); // For final states, the utility is the reward of 
+                }
+                if (Math.abs(change) > delta) {
+                    delta = Math.abs(change);
                 }
             }
-            /* Updates policies U <-- U' */
-            utilities = currentUtilities;
         } while (delta >= maxDelta);
+    }
+
+    /**
+     * Solves a range of the components of a level, splitting it while it has enough states.
+     */
+    private class ComponentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final TransitionComponents components;
+        private final int from;
+        private final int to;
+
+        ComponentTask(TransitionComponents components, int from, int to) {
+            this.components = components;
+            this.from = from;
+            this.to = to;
+        }
 
-        /* Obtains the optimal policy for each state */
-        for (State state : problemMDP.getAllStates()) {
-            if (!problemMDP.isFinal(state)) {
-                Action optimalAction = null;
-                double expectedUtility = Double.NEGATIVE_INFINITY;
-                
-                /* For each possible action, finds the one that leads to a higher utility */
-                for (Action action : problemMDP.getPossibleActions(state)) {
-                    if (problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma) > expectedUtility) {
-                        expectedUtility = problemMDP.getExpectedUtility(state, action, utilities, problemMDP.gamma);
-                        optimalAction = action;
+        @Override
+        protected void compute() {
+            int numStates = 0;
+            for (int i = from; i < to; i++) {
+                int component = components.levelComponents[i];
+                numStates += components.componentOffsets[component + 1] - components.componentOffsets[component];
+            }
+            if (to - from == 1 || numStates <= MIN_STATES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    solveComponent(components, components.levelComponents[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ComponentTask(components, from, middle), new ComponentTask(components, middle, to));
+        }
+    }
+
+    /**
+     * Returns the order of the states in the in-place sweeps.
+     */
+    private int[] sweepOrder() {
+        int numStates = model.numStates;
+        int[] sweepOrder = new int[numStates];
+        if (order.equals("goal")) {
+            /* Targets are the final states with positive reward (all the final states if there is none) */
+            int numTargets = 0;
+            for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+                if (model.finals[stateIdx] && model.rewards[stateIdx] > 0) {
+                    sweepOrder[numTargets++] = stateIdx;
+                }
+            }
+            if (numTargets == 0) {
+                for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+                    if (model.finals[stateIdx]) {
+                        sweepOrder[numTargets++] = stateIdx;
                     }
                 }
+            }
+            return model.getReverseIndex().sortByDistance(Arrays.copyOf(sweepOrder, numTargets));
+        }
+        for (int stateIdx = 0; stateIdx < numStates; stateIdx++) {
+            sweepOrder[stateIdx] = order.equals("reverse") ? numStates - 1 - stateIdx : stateIdx;
+        }
+        return sweepOrder;
+    }
+
+    /**
+     * Parallel sweep of a range of states. Ranges are split in halves until they are small
+     * enough, and the result is the maximum delta of both halves.
+     */
+    private class SweepTask extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        SweepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
 
-                solution.setAction(state, optimalAction);
+        @Override
+        protected Double compute() {
+            if (to - from <= MIN_STATES_PER_TASK) {
+                return sweep(from, to);
             }
+            int middle = (from + to) >>> 1;
+            SweepTask left = new SweepTask(from, middle);
+            left.fork();
+            double rightDelta = new SweepTask(middle, to).compute();
+            return Math.max(left.join(), rightDelta);
         }
     }
 
     /**
-     * Sets the parameters of the algorithm.
+     * Sets the parameters of the algorithm: maxDelta [mode [threads | order | kernel | threshold]]. The mode can be
+     * sequential (default), parallel, which splits each sweep among several threads (by default,
+     * as many as processors), gaussseidel, which updates the utilities in place following
+     * the given order (rowmajor, reverse or goal), or stencil, which solves the problem with its own
+     * solver (for mazes, directly on the grid, see MazeStencilSolver) with the scalar (default) or the vector kernel, or async,
+     * which backs up the states from a worklist, adding them again only when a successor changes
+     * by more than the threshold (by default, maxDelta), or scc, which solves the strongly connected
+     * components of the states in dependency order, those independent in parallel (with the given threads).
      */
     @Override
     public void setParams(String[] args) {
-        // In this case, there is only one parameter (maxDelta).
         if (args.length > 0) {
             try {
                 maxDelta = Double.parseDouble(args[0]);
@@ -109,6 +448,45 @@ public class ValueIteration extends LearningAlgorithm {
                 System.out.println("The value for maxDelta is not correct. Using 0.01.");
             }
         }
+        if (args.length > 1) {
+            if (args[1].equals("sequential") || args[1].equals("parallel") || args[1].equals("gaussseidel") || args[1].equals("stencil") || args[1].equals("async") || args[1].equals("scc")) {
+                mode = args[1];
+            } else {
+                System.out.println("The mode " + args[1] + " is not correct. Using sequential.");
+            }
+        }
+        threshold = maxDelta;
+        if (args.length > 2) {
+            if (mode.equals("async")) {
+                try {
+                    threshold = Double.parseDouble(args[2]);
+                } catch (Exception e) {
+                    System.out.println("The value for the threshold is not correct. Using " + maxDelta + ".");
+                }
+            } else if (mode.equals("parallel") || mode.equals("scc")) {
+                try {
+                    int threads = Integer.parseInt(args[2]);
+                    if (threads < 1) {
+                        throw new NumberFormatException("At least one thread is required");
+                    }
+                    numThreads = threads;
+                } catch (Exception e) {
+                    System.out.println("The number of threads is not correct. Using " + numThreads + ".");
+                }
+            } else if (mode.equals("gaussseidel")) {
+                if (args[2].equals("rowmajor") || args[2].equals("reverse") || args[2].equals("goal")) {
+                    order = args[2];
+                } else {
+                    System.out.println("The order " + args[2] + " is not correct. Using rowmajor.");
+                }
+            } else if (mode.equals("stencil")) {
+                if (args[2].equals("scalar") || args[2].equals("vector")) {
+                    kernel = args[2];
+                } else {
+                    System.out.println("The kernel " + args[2] + " is not correct. Using scalar.");
+                }
+            }
+        }
     }
 
     /**
@@ -118,10 +496,9 @@ public class ValueIteration extends LearningAlgorithm {
         // Prints the utilities.
         System.out.println("Value Iteration\n");
         System.out.println("Utilities");
-        for (Entry<State, Double> entry : utilities.entrySet()) {
-            State state = entry.getKey();
-            double utility = entry.getValue();
-            System.out.println("\t" + state + "  ---> " + utility);
+        MDPLearningProblem problemMDP = (MDPLearningProblem) this.problem;
+        for (int stateIdx = 0; stateIdx < utilities.length; stateIdx++) {
+            System.out.println("\t" + problemMDP.getState(stateIdx) + "  ---> " + utilities[stateIdx]);
         }
         // Prints the policy
         System.out.println("\nOptimal policy");
@@ -0,0 +1,217 @@
+package algorithms.qlearning;
+
+import java.util.Arrays;
+
+import learning.*;
+import utils.Utils;
+
+/**
+ * Implements the Dyna-Q algorithm. It updates the QTable as QLearning after each real step, and
+ * also learns a model of the problem from the observed transitions. After each real step, it
+ * carries out a number of planning steps: it selects a pair state-action observed before, simulates
+ * a transition with the model, and updates the table as if it had been experienced.
+ *
+ * As the problems are stochastic, the model keeps up to MODEL_SAMPLES outcomes (reward and next state)
+ * of each pair state-action, chosen uniformly among all the outcomes observed (reservoir sampling),
+ * and simulated transitions select one of them randomly. The model is stored in primitive arrays
+ * indexed by stateIdx*numActions+action, which grow with the table.
+ */
+public class DynaQ extends LearningAlgorithm {
+
+    /* Maximum number of outcomes stored for each pair state-action. */
+    private static final int MODEL_SAMPLES = 8;
+
+    /* Table containing the Q values for each pair State-Action. */
+    private QTable qTable;
+
+    /* Number of iterations used to learn the algorithm.*/
+    private int iterations = 1000;
+
+    /* Alpha parameter. */
+    private double alpha = 0.1;
+
+    /* Number of planning steps carried out after each real step. */
+    private int planningSteps = 10;
+
+    /* Number of simulated updates. */
+    private long numPlanningUpdates;
+
+    /*
+     * Model: number of outcomes observed for each pair state-action (pair = stateIdx*numActions+action), and
+     * the stored outcomes (reward and index of the next state, -1 if it is final) at pair*MODEL_SAMPLES+sample.
+     */
+    private int[] numObserved;
+    private double[] modelRewards;
+    private int[] modelNextStates;
+
+    /* Pairs observed at least once (the first numPairs positions are used). */
+    private int[] observedPairs;
+    private int numPairs;
+
+    /**
+     * Sets the number of iterations.
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Sets the number of planning steps.
+     */
+    public void setPlanningSteps(int planningSteps) {
+        this.planningSteps = planningSteps;
+    }
+
+    /**
+     * Learns the policy (notice that this method is protected, and called from the public method learnPolicy(LearningProblem problem, double gamma) in LearningAlgorithm.
+     */
+    @Override
+    protected void learnPolicy() {
+        // Creates the QTable and the model
+        qTable = new QTable(problem);
+        numObserved = new int[16 * qTable.getNumActions()];
+        modelRewards = new double[numObserved.length * MODEL_SAMPLES];
+        modelNextStates = new int[numObserved.length * MODEL_SAMPLES];
+        observedPairs = new int[16];
+        numPairs = 0;
+        numPlanningUpdates = 0;
+
+        // The algorithm carries out a certain number of iterations
+        for (int nIteration = 0; nIteration < iterations; nIteration++) {
+            State currentState = problem.getRandomState();
+
+            // Iterates until it finds a final state.
+            while (!problem.isFinal(currentState)) {
+                int currentIdx = qTable.getStateIndex(currentState);
+
+                /* Selects the best action (a random one if the state has no entries) */
+                int selAction = qTable.getActionMaxValue(currentIdx);
+                if (selAction < 0) {
+                    selAction = problem.randomAction(currentState).ordinal();
+                }
+
+                /* Executes the action and reads the reward (the transition reward is added if the new state is not final, as in QLearning) */
+                State newState = problem.applyAction(currentState, qTable.getAction(selAction));
+                double reward = problem.getReward(newState);
+                int newIdx = -1;
+                if (!problem.isFinal(newState)) {
+                    reward += problem.getTransitionReward(currentState, qTable.getAction(selAction), newState);
+                    newIdx = qTable.addState(newState);
+                }
+
+                /* Direct update of the table */
+                if (currentIdx < 0) {
+                    currentIdx = qTable.addState(currentState);
+                }
+                update(currentIdx, selAction, reward, newIdx);
+
+                /* Updates the model, and plans with it */
+                observe(currentIdx * qTable.getNumActions() + selAction, reward, newIdx);
+                for (int step = 0; step < planningSteps; step++) {
+                    int pair = observedPairs[Utils.random.nextInt(numPairs)];
+                    int sample = pair * MODEL_SAMPLES + Utils.random.nextInt(Math.min(numObserved[pair], MODEL_SAMPLES));
+                    update(pair / qTable.getNumActions(), pair % qTable.getNumActions(), modelRewards[sample], modelNextStates[sample]);
+                }
+                numPlanningUpdates += planningSteps;
+
+                currentState = newState;
+            }
+        }
+        solution = qTable.generatePolicy();
+    }
+
+    /**
+     * Updates Q(state,action) with a transition (the index of the next state is -1 if it is final).
+     */
+    private void update(int stateIdx, int action, double reward, int nextStateIdx) {
+        double Q = qTable.getQValue(stateIdx, action);
+        if (nextStateIdx >= 0) {
+            Q = ((1 - alpha) * Q) + (alpha * (reward + problem.gamma * qTable.getMaxQValue(nextStateIdx)));
+        } else {
+            Q = ((1 - alpha) * Q) + (alpha * reward);
+        }
+        qTable.setQValue(stateIdx, action, Q);
+    }
+
+    /**
+     * Adds an outcome of a pair state-action to the model. When the pair already has MODEL_SAMPLES
+     * outcomes, the new one replaces a random one with probability MODEL_SAMPLES/observed.
+     */
+    private void observe(int pair, double reward, int nextStateIdx) {
+        if (pair >= numObserved.length) {
+            int newLength = Math.max(2 * numObserved.length, pair + 1);
+            numObserved = Arrays.copyOf(numObserved, newLength);
+            modelRewards = Arrays.copyOf(modelRewards, newLength * MODEL_SAMPLES);
+            modelNextStates = Arrays.copyOf(modelNextStates, newLength * MODEL_SAMPLES);
+        }
+        int observed = numObserved[pair]++;
+        if (observed == 0) {
+            if (numPairs == observedPairs.length) {
+                observedPairs = Arrays.copyOf(observedPairs, 2 * numPairs);
+            }
+            observedPairs[numPairs++] = pair;
+        }
+        int sample = (observed < MODEL_SAMPLES) ? observed : Utils.random.nextInt(observed + 1);
+        if (sample < MODEL_SAMPLES) {
+            modelRewards[pair * MODEL_SAMPLES + sample] = reward;
+            modelNextStates[pair * MODEL_SAMPLES + sample] = nextStateIdx;
+        }
+    }
+
+    /**
+     * Sets the parameters of the algorithm: alpha [iterations [planningSteps]].
+     */
+    @Override
+    public void setParams(String[] args) {
+        if (args.length > 0) {
+            // Alpha
+            try {
+                alpha = Double.parseDouble(args[0]);
+            } catch (Exception e) {
+                System.out.println("The value for alpha is not correct. Using 0.1.");
+            }
+            // Maximum number of iterations.
+            if (args.length > 1) {
+                try {
+                    iterations = Integer.parseInt(args[1]);
+                } catch (Exception e) {
+                    System.out.println("The value for the number of iterations is not correct. Using 1000.");
+                }
+            }
+            // Number of planning steps.
+            if (args.length > 2) {
+                try {
+                    planningSteps = Integer.parseInt(args[2]);
+                } catch (Exception e) {
+                    System.out.println("The number of planning steps is not correct. Using 10.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the results
+     */
+    public void printResults() {
+        System.out.println("DynaQ \n");
+        System.out.println("Planning updates: " + numPlanningUpdates);
+        // Prints the policy
+        System.out.println("\nOptimal policy");
+        System.out.println(solution);
+        // Prints the qtable
+        System.out.println("QTable");
+        System.out.println(qTable);
+    }
+
+    /**
+     * Main function. Allows testing the algorithm with MDPExProblem
+     */
+    public static void main(String[] args) {
+        LearningProblem mdp = new problems.mdpexample2.MDPExProblem();
+        mdp.setParams(null);
+        DynaQ dynaQ = new DynaQ();
+        dynaQ.setProblem(mdp);
+        dynaQ.learnPolicy(mdp);
+        dynaQ.printResults();
+    }
+}
@@ -0,0 +1,84 @@
+package algorithms.qlearning;
+
+import java.util.Arrays;
+
+/**
+ * Eligibility traces of the pairs state-action (pair = stateIdx*numActions+action). Only the pairs with
+ * a trace not lower than a threshold are stored (the active set), in two arrays (pairs and traces),
+ * and the position of each pair in them is kept, so setting a trace is O(1), and decaying or clearing
+ * all the traces is O(active) instead of O(table).
+ */
+public class EligibilityTraces{
+
+	/* Traces lower than this value are removed. */
+	private final double threshold;
+
+	/* Active pairs and their traces (the first size positions are used). */
+	private int[] pairs = new int[16];
+	private double[] traces = new double[16];
+	private int size = 0;
+
+	/* Position of each pair in the active set (-1 if it is not active). Grows with the pairs. */
+	private int[] positions = new int[0];
+
+	/** Creates an empty set of traces. */
+	public EligibilityTraces(double threshold){
+		this.threshold = threshold;
+	}
+
+	/** Number of active pairs. */
+	public int size(){ return size; }
+
+	/** Pair in a position of the active set. */
+	public int getPair(int position){ return pairs[position]; }
+
+	/** Trace of the pair in a position of the active set. */
+	public double getTrace(int position){ return traces[position]; }
+
+	/** Sets the trace of a pair (replacing traces), adding it to the active set if necessary. */
+	public void set(int pair, double trace){
+		if (pair>=positions.length){
+			int oldLength = positions.length;
+			positions = Arrays.copyOf(positions, Math.max(2*oldLength, pair+1));
+			Arrays.fill(positions, oldLength, positions.length, -1);
+		}
+		int position = positions[pair];
+		if (position<0){
+			if (size==pairs.length){
+				pairs = Arrays.copyOf(pairs, 2*size);
+				traces = Arrays.copyOf(traces, 2*size);
+			}
+			position = size++;
+			pairs[position] = pair;
+			positions[pair] = position;
+		}
+		traces[position] = trace;
+	}
+
+	/** Multiplies all the traces by a factor, removing those that become lower than the threshold. */
+	public void decay(double factor){
+		int position = 0;
+		while (position<size){
+			traces[position] *= factor;
+			if (traces[position]<threshold){
+				// The last pair takes its position.
+				positions[pairs[position]] = -1;
+				size--;
+				if (position<size){
+					pairs[position] = pairs[size];
+					traces[position] = traces[size];
+					positions[pairs[position]] = position;
+				}
+			}
+			else
+				position++;
+		}
+	}
+
+	/** Removes all the traces. */
+	public void clear(){
+		for (int position=0;position<size;position++)
+			positions[pairs[position]] = -1;
+		size = 0;
+	}
+}
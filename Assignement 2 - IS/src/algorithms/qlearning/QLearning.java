@@ -1,6 +1,10 @@
 package algorithms.qlearning;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import learning.*;
+import utils.Utils;
 
 /**
  * This class must implement the QLearning algorithm to learn the optimal policy.
@@ -19,6 +23,23 @@ public class QLearning extends LearningAlgorithm {
     /* Probability of doing a random selection of the action (instead of q) */
     private double probGreedy = 0.9;
 
+    /* Number of threads running episodes at the same time on the shared table. */
+    private int numThreads = 1;
+
+    /*
+     * Mode of the updates: none (one update per step), uniform or prioritized (experience replay, see ReplayBuffer)
+     * or lambda (eligibility traces, Watkins's Q(lambda)).
+     */
+    private String mode = "none";
+
+    /* Number of transitions replayed after each step, and capacity of the replay buffer. */
+    private int batchSize = 32;
+    private int bufferCapacity = 100000;
+
+    /* Decay of the eligibility traces, and traces lower than this value are discarded. */
+    private double lambda = 0.9;
+    private double traceThreshold = 0.01;
+
     /**
      * Sets the number of iterations.
      */
@@ -40,10 +61,38 @@ public class QLearning extends LearningAlgorithm {
         // Creates the QTable
         qTable = new QTable(problem);
 
+        // The episodes can be split among several threads, which update the table without locks.
+        // This requires the table to be indexed by the problem (MDP problems, and model free problems indexing their states)
+        if (numThreads > 1) {
+            if (qTable.isIndexedByProblem()) {
+                ForkJoinPool pool = new ForkJoinPool(numThreads);
+                pool.invoke(new EpisodesTask(iterations, (iterations + numThreads - 1) / numThreads));
+                pool.shutdown();
+                solution = qTable.generatePolicy();
+                return;
+            }
+            System.out.println("The problem does not index its states, so the table can not be shared. Using one thread.");
+        }
+        runEpisodes(iterations);
+        solution = qTable.generatePolicy();
+    }
+
+    /**
+     * Runs a number of episodes, updating the table.
+     */
+    private void runEpisodes(int numEpisodes) {
+        if (mode.equals("lambda")) {
+            runEpisodesLambda(numEpisodes);
+            return;
+        }
+        // Each thread stores its own transitions
+        ReplayBuffer buffer = mode.equals("none") ? null : new ReplayBuffer(bufferCapacity, mode.equals("prioritized"));
+
         // The algorithm carries out a certain number of iterations
-        for (int nIteration = 0; nIteration < iterations; nIteration++) {
+        for (int nIteration = 0; nIteration < numEpisodes; nIteration++) {
             State currentState, newState;         // Current state and new state
-            Action selAction;                     // Selected action
+            int currentIdx;                       // Index of the current state in the table
+            int selAction;                        // Selected action (number of the action)
             double Q, reward, maxQ;               // Values necessary to update the table.
 
             // Generates a new initial state.
@@ -53,31 +102,32 @@ public class QLearning extends LearningAlgorithm {
 
             // Iterates until it finds a final state.
             while (!problem.isFinal(currentState)) {
+                currentIdx = qTable.getStateIndex(currentState);
 
                 /* Select action "selAction" according to "π*(Qˆ)" for that state */
-                selAction = qTable.getActionMaxValue(currentState);
+                selAction = qTable.getActionMaxValue(currentIdx);
                 
                 /* If no actions is selected, a random one is chosen */
-                if (selAction == null) {
-                    selAction = problem.randomAction(currentState);
+                if (selAction < 0) {
+                    selAction = problem.randomAction(currentState).ordinal();
                 }
                 
                 /* Execute action "selAction" from "currentState", and read new state "newState" */
-                newState = problem.applyAction(currentState, selAction);
+                newState = problem.applyAction(currentState, qTable.getAction(selAction));
                 
                 /* Read reward "reward" */
                 reward = problem.getReward(newState);
 
                 /* Reads current Q value for the current state and action "selAction" */
-                Q = qTable.getQValue(currentState, selAction);
+                Q = qTable.getQValue(currentIdx, selAction);
 
                 /* If the new state is not final */
                 if (!problem.isFinal(newState)) {
                     
-                    maxQ = qTable.getMaxQValue(newState);
+                    maxQ = qTable.getMaxQValue(qTable.getStateIndex(newState));
 
                     /* Obtains the new reward */
-                    reward += problem.getTransitionReward(currentState, selAction, newState);
+                    reward += problem.getTransitionReward(currentState, qTable.getAction(selAction), newState);
 
                     /* Calculates new Q value */
                     Q = ((1 - alpha) * Q) + (alpha * (reward + problem.gamma * maxQ));
@@ -86,16 +136,139 @@ public class QLearning extends LearningAlgorithm {
                     Q = ((1 - alpha) * Q) + (alpha * reward);
                 }
 
-                qTable.setQValue(currentState, selAction, Q);
+                /* The entries of the state are created the first time it is updated */
+                if (currentIdx < 0) {
+                    currentIdx = qTable.addState(currentState);
+                }
+                qTable.setQValue(currentIdx, selAction, Q);
+
+                /* Stores the transition, and updates the table again with some of the stored ones */
+                if (buffer != null) {
+                    buffer.add(currentIdx, selAction, reward, problem.isFinal(newState) ? -1 : qTable.addState(newState));
+                    replayTransitions(buffer);
+                }
 
                 currentState = newState;
             }
         }
-        solution = qTable.generatePolicy();
     }
 
     /**
-     * Sets the parameters of the algorithm.
+     * Runs a number of episodes with Watkins's Q(lambda). Each temporal difference error updates all the
+     * pairs with an eligibility trace, so rewards are propagated back along the episode. The trace of the pair
+     * applied is set to 1, and the traces decay by gamma*lambda after greedy actions. Actions are selected
+     * randomly with probability 1-probGreedy, and the traces are discarded when the action is not greedy,
+     * as the following rewards do not correspond to the greedy policy. Only the traces not lower
+     * than traceThreshold are stored (see EligibilityTraces).
+     */
+    private void runEpisodesLambda(int numEpisodes) {
+        EligibilityTraces traces = new EligibilityTraces(traceThreshold); // Each thread has its own traces
+        int numActions = qTable.getNumActions();
+        for (int nIteration = 0; nIteration < numEpisodes; nIteration++) {
+            traces.clear();
+            State currentState = problem.getRandomState();
+            int selAction = problem.isFinal(currentState) ? -1 : selectAction(currentState, qTable.getStateIndex(currentState));
+
+            // Iterates until it finds a final state.
+            while (!problem.isFinal(currentState)) {
+                /* The entries of the state are created, as it is updated in this step */
+                int currentIdx = qTable.addState(currentState);
+
+                /* Executes the action, reads the reward and selects the next action */
+                State newState = problem.applyAction(currentState, qTable.getAction(selAction));
+                double reward = problem.getReward(newState);
+                double target;
+                int nextAction = -1;
+                boolean greedy = true;
+                if (!problem.isFinal(newState)) {
+                    reward += problem.getTransitionReward(currentState, qTable.getAction(selAction), newState);
+                    int newIdx = qTable.getStateIndex(newState);
+                    nextAction = selectAction(newState, newIdx);
+                    double maxQ = qTable.getMaxQValue(newIdx);
+                    greedy = qTable.getQValue(newIdx, nextAction) == maxQ;
+                    target = reward + problem.gamma * maxQ;
+                } else {
+                    target = reward;
+                }
+
+                /* Updates all the pairs with a trace with the error */
+                double delta = target - qTable.getQValue(currentIdx, selAction);
+                traces.set(currentIdx * numActions + selAction, 1);
+                for (int position = 0; position < traces.size(); position++) {
+                    int pair = traces.getPair(position);
+                    int stateIdx = pair / numActions, action = pair % numActions;
+                    qTable.setQValue(stateIdx, action, qTable.getQValue(stateIdx, action) + alpha * delta * traces.getTrace(position));
+                }
+                if (greedy) {
+                    traces.decay(problem.gamma * lambda);
+                } else {
+                    traces.clear();
+                }
+
+                currentState = newState;
+                selAction = nextAction;
+            }
+        }
+    }
+
+    /**
+     * Selects a random action with probability 1-probGreedy, or the best one (random if the state has no entries).
+     */
+    private int selectAction(State state, int stateIdx) {
+        int action = (Utils.random.nextDouble() < probGreedy) ? qTable.getActionMaxValue(stateIdx) : -1;
+        return (action < 0) ? problem.randomAction(state).ordinal() : action;
+    }
+
+    /**
+     * Updates the table with batchSize transitions sampled from the buffer (if it has enough of them),
+     * as if they were experienced again. Their errors are used as their new priorities.
+     */
+    private void replayTransitions(ReplayBuffer buffer) {
+        if (buffer.size() < batchSize) {
+            return;
+        }
+        for (int i = 0; i < batchSize; i++) {
+            int entry = buffer.sample();
+            int stateIdx = buffer.getState(entry), action = buffer.getAction(entry), nextStateIdx = buffer.getNextState(entry);
+            double Q = qTable.getQValue(stateIdx, action);
+            double target = buffer.getReward(entry);
+            if (nextStateIdx >= 0) {
+                target += problem.gamma * qTable.getMaxQValue(nextStateIdx);
+            }
+            qTable.setQValue(stateIdx, action, ((1 - alpha) * Q) + (alpha * target));
+            buffer.setError(entry, target - Q);
+        }
+    }
+
+    /**
+     * Runs a number of episodes in parallel, splitting them in halves until each part is small enough.
+     * Each thread samples with its own random generator (see utils.PerThreadRandom).
+     */
+    private class EpisodesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int numEpisodes;
+        private final int episodesPerTask;
+
+        EpisodesTask(int numEpisodes, int episodesPerTask) {
+            this.numEpisodes = numEpisodes;
+            this.episodesPerTask = episodesPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (numEpisodes <= episodesPerTask) {
+                runEpisodes(numEpisodes);
+                return;
+            }
+            int half = numEpisodes / 2;
+            invokeAll(new EpisodesTask(half, episodesPerTask), new EpisodesTask(numEpisodes - half, episodesPerTask));
+        }
+    }
+
+    /**
+     * Sets the parameters of the algorithm: alpha [iterations [threads [mode [...]]]]. The mode can be none (default),
+     * uniform or prioritized, followed by [batchSize [capacity]] (experience replay), or lambda, followed by
+     * [lambda [traceThreshold]] (eligibility traces).
      */
     @Override
     public void setParams(String[] args) {
@@ -114,6 +287,57 @@ public class QLearning extends LearningAlgorithm {
                     System.out.println("The value for the number of iterations is not correct. Using 1000.");
                 }
             }
+            // Number of threads.
+            if (args.length > 2) {
+                try {
+                    int threads = Integer.parseInt(args[2]);
+                    if (threads < 1) {
+                        throw new NumberFormatException("At least one thread is required");
+                    }
+                    numThreads = threads;
+                } catch (Exception e) {
+                    System.out.println("The number of threads is not correct. Using 1.");
+                }
+            }
+            // Mode of the updates.
+            if (args.length > 3) {
+                if (args[3].equals("none") || args[3].equals("uniform") || args[3].equals("prioritized") || args[3].equals("lambda")) {
+                    mode = args[3];
+                } else {
+                    System.out.println("The mode " + args[3] + " is not correct. Using none.");
+                }
+            }
+            if (mode.equals("lambda")) {
+                if (args.length > 4) {
+                    try {
+                        lambda = Double.parseDouble(args[4]);
+                    } catch (Exception e) {
+                        System.out.println("The value for lambda is not correct. Using 0.9.");
+                    }
+                }
+                if (args.length > 5) {
+                    try {
+                        traceThreshold = Double.parseDouble(args[5]);
+                    } catch (Exception e) {
+                        System.out.println("The threshold of the traces is not correct. Using 0.01.");
+                    }
+                }
+            } else {
+                if (args.length > 4) {
+                    try {
+                        batchSize = Integer.parseInt(args[4]);
+                    } catch (Exception e) {
+                        System.out.println("The batch size is not correct. Using 32.");
+                    }
+                }
+                if (args.length > 5) {
+                    try {
+                        bufferCapacity = Integer.parseInt(args[5]);
+                    } catch (Exception e) {
+                        System.out.println("The capacity of the buffer is not correct. Using 100000.");
+                    }
+                }
+            }
         }
     }
 
@@ -1,146 +1,288 @@
 package algorithms.qlearning;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import learning.Action;
 import learning.LearningProblem;
 import learning.MDPLearningProblem;
+import learning.MFLearningProblem;
 import learning.Policy;
 import learning.State;
 import utils.Utils;
 
 /** 
- * This class allows storing and managing the values for Q(s,a)
+ * This class allows storing and managing the values for Q(s,a). 
+ * 
+ * Values are stored in a flat array of doubles, table[stateIdx*numActions + action.ordinal()].
+ * For MDPLearningProblem problems, and MFLearningProblem problems indexing their states, states are 
+ * indexed with the index provided by the problem. Otherwise, states receive an index the first time 
+ * a value is stored for them.
+ * Entries corresponding to pairs state-action that do not exist contain NaN.
+ *
+ * When the states are indexed by the problem (as in MazeProblemMDP and MazeProblemMF), the table never grows, so several threads can read
+ * and update its values at the same time without locks (some updates may be lost, which Q-learning
+ * tolerates). Tables indexing the states themselves must be used by a single thread.
  */
 public class QTable {
 	
 	/** Reference to the problem. */
 	LearningProblem problem;
 	
-	/** Contains the main table. For each state, there is a map
-	 *  with the qvalues corresponding to each action. */
-	private HashMap<State, HashMap<Action, Double>> table;
+	/** Actions of the problem, sorted by their number. */
+	private Action[] actions;
+	
+	/** Number of actions (size of the row of each state). */
+	private int numActions;
+	
+	/** Contains the main table. Each state has a row with numActions values. */
+	private double[] table;
+	
+	/** Number of states with entries in the table. */
+	private int numStates;
+	
+	/** States with entries, sorted by their index. */
+	private State[] states;
+	
+	/** Index of each state, when it is not provided by the problem. */
+	private HashMap<State, Integer> stateIndex;
+	
+	/** Whether the index of the states is provided by the problem. */
+	private boolean indexedByProblem = false;
+	
+	/** The problem, when it provides the index of the states (only one of them is not null). */
+	private MDPLearningProblem problemMDP;
+	private MFLearningProblem problemMF;
 	
 	/** Constructor. Constructs an empty table.*/
 	public QTable(){
-		table = new HashMap<State, HashMap<Action, Double>>();
+		states = new State[16];
+		stateIndex = new HashMap<State, Integer>();
 	}
 	
 	/** This constructor builds a table, assuming that all states of the problem are known. */
 	public QTable(LearningProblem problem){
+		this();
 		this.problem = problem;
-		
-		// Creates the qtable.		
-		table = new HashMap<State, HashMap<Action, Double>>();
+		setActions(problem.getAllActions());
 		
 		// For MDPLearningProblem problems, the states are known a priori, and can be initialized.
-		if (problem instanceof MDPLearningProblem)
-			// Adds an empty entry for each state.
-			for (State state: ((MDPLearningProblem)problem).getAllStates()){
-				table.put(state,new HashMap<Action, Double>());
-				// Creates the entry for each action and initializes the q(s,a) to 0
-				ArrayList<Action> possibleActions = problem.getPossibleActions(state);
-				for (Action action: possibleActions)
-					table.get(state).put(action, 0.0);
+		if (problem instanceof MDPLearningProblem){
+			problemMDP = (MDPLearningProblem) problem;
+			numStates = problemMDP.getNumStates();
+		}
+		// MFLearningProblem problems may index their states. Some indexes may not correspond to states.
+		else if (problem instanceof MFLearningProblem && ((MFLearningProblem) problem).getNumStateIndexes()>0){
+			problemMF = (MFLearningProblem) problem;
+			numStates = problemMF.getNumStateIndexes();
+		}
+		else
+			return;
+		indexedByProblem = true;
+		stateIndex = null;
+		states = new State[numStates];
+		table = new double[numStates*numActions];
+		Arrays.fill(table, Double.NaN);
+		// Adds an entry for each state.
+		for (int stateIdx=0;stateIdx<numStates;stateIdx++){
+			states[stateIdx] = (problemMDP!=null) ? problemMDP.getState(stateIdx) : problemMF.getState(stateIdx);
+			if (states[stateIdx]==null)
+				continue;
+			// Creates the entry for each action and initializes the q(s,a) to 0
+			for (Action action: problem.getPossibleActionArray(states[stateIdx]))
+				table[stateIdx*numActions+action.ordinal()] = 0.0;
+		}
+	}
+	
+	/** Sets the actions and creates the table. */
+	private void setActions(Action[] actions){
+		this.actions = actions;
+		this.numActions = actions.length;
+		this.table = new double[states.length*numActions];
+		Arrays.fill(table, Double.NaN);
+	}
+	
+	// Methods working with the indexes of states and actions.
+	
+	/** Returns the index of the state in the table, or -1 if the table does not contain the state. */
+	public int getStateIndex(State state){
+		if (problemMDP!=null)
+			return problemMDP.getStateIndex(state);
+		if (problemMF!=null)
+			return problemMF.getStateIndex(state);
+		Integer idx = stateIndex.get(state);
+		return idx==null ? -1 : idx;
+	}
+	
+	/** Returns the state corresponding to an index. */
+	public State getState(int stateIdx){ return states[stateIdx]; }
+	
+	/** Returns the action corresponding to a number. */
+	public Action getAction(int action){ return actions[action]; }
+	
+	/** Whether the states are indexed by the problem (so the table can be shared by several threads). */
+	public boolean isIndexedByProblem(){ return indexedByProblem; }
+	
+	/** Returns the number of actions. */
+	public int getNumActions(){ return numActions; }
+	
+	/** 
+	 * Returns the index of the state, creating the entries corresponding to the state if 
+	 * they do not exist (one entry, initialized to 0, for each possible action). If the table
+	 * is indexed by the problem, the state must have an index.
+	 */
+	public int addState(State state){
+		int stateIdx = getStateIndex(state);
+		if (stateIdx>=0)
+			return stateIdx;
+		// Tables indexed by the problem already contain all its states.
+		if (indexedByProblem)
+			throw new IllegalArgumentException("The state "+state+" is not indexed by the problem.");
+		// Makes room for the new state.
+		stateIdx = numStates++;
+		if (numStates>states.length){
+			states = Arrays.copyOf(states, 2*states.length);
+			int oldLength = table.length;
+			table = Arrays.copyOf(table, states.length*numActions);
+			Arrays.fill(table, oldLength, table.length, Double.NaN);
+		}
+		states[stateIdx] = state;
+		stateIndex.put(state, stateIdx);
+		if (problem!=null)
+			for (Action action: problem.getPossibleActionArray(state))
+				table[stateIdx*numActions+action.ordinal()] = 0.0;
+		return stateIdx;
+	}
+	
+	/** Whether the table contains an entry for a given pair state-action. */
+	public boolean contains(int stateIdx, int action){
+		return stateIdx>=0 && !Double.isNaN(table[stateIdx*numActions+action]);
+	}
+	
+	/** Sets a value in an entry of the table: Q(state,action)=value. The state must be in the table. */
+	public void setQValue(int stateIdx, int action, double value){
+		table[stateIdx*numActions+action] = value;
+	}
+	
+	/** Gets the value in an entry of the table, Q(state,action). If the entry does not exist, return 0.*/
+	public double getQValue(int stateIdx, int action){
+		if (stateIdx<0)
+			return 0;
+		double value = table[stateIdx*numActions+action];
+		return Double.isNaN(value) ? 0 : value;
+	}
+	
+	/** Returns the number of the action that maximizes Q(state,action), or -1 if there are no entries for the state. */
+	public int getActionMaxValue(int stateIdx){
+		if (stateIdx<0)
+			return -1;
+		int bestAction=-1;
+		double bestValue=Double.NEGATIVE_INFINITY;
+		int offset = stateIdx*numActions;
+		for (int action=0;action<numActions;action++){
+			double value = table[offset+action];
+			// Actions without entry are skipped.
+			if (Double.isNaN(value))
+				continue;
+			// If the action is the best, updates
+			if (value>bestValue){
+				bestAction = action;
+				bestValue = value;
 			}
+			// If it is equal to the best, updates randomly.
+			else if (value==bestValue && Utils.random.nextFloat()<0.5) {
+				bestAction = action;
+			}
+		}
+		return bestAction;
 	}
 	
+	/** Returns the maximum value q(state,action) for a state (0 if there are no entries for the state). */
+	public double getMaxQValue(int stateIdx){
+		if (stateIdx<0)
+			return 0;
+		double bestValue=Double.NEGATIVE_INFINITY;
+		int offset = stateIdx*numActions;
+		for (int action=0;action<numActions;action++){
+			double value = table[offset+action];
+			if (value>bestValue)
+				bestValue = value;
+		}
+		return bestValue==Double.NEGATIVE_INFINITY ? 0 : bestValue;
+	}
+	
+	// Methods working with states and actions. 
+	
 	/** Test whether the table contains the entries corresponding to a given state. */
 	public boolean contains(State state){
-		return table.containsKey(state);
+		return getStateIndex(state)>=0;
 	}
 	
 	/** Test whether the table contains an entry for a given pair state-action. */
 	public boolean contains(State state, Action action){
-		return table.containsKey(state) && table.get(state).containsKey(action);
+		return actions!=null && contains(getStateIndex(state), action.ordinal());
 	}
 	
 	/** Sets a value in an entry of the table: Q(state,action)=value. */
 	public void setQValue(State state, Action action, double value){
-		// If the table contains the state, assigns the value.
-		if (table.containsKey(state))
-			table.get(state).put(action, value);
-		// Otherwise creates the entry for each action and puts the value.
-		else{
-			 table.put(state,new HashMap<Action, Double>());
-			 ArrayList<Action> possibleActions = problem.getPossibleActions(state);
-			 for (Action otheraction: possibleActions)
-				 if (otheraction!=action)
-					table.get(state).put(otheraction, 0.0);			 
-			 table.get(state).put(action, value);
-		}
+		// Without a problem, the actions are those of the enumeration of the first action stored. 
+		if (actions==null)
+			setActions((Action[]) action.getClass().getEnumConstants());
+		// If the table does not contain the state, creates the entry for each action and puts the value.
+		setQValue(addState(state), action.ordinal(), value);
 	}	
 	
 	/** Gets the value in an entry of the table, Q(state,action).
 	 *  If the entry does not exist, return 0.*/
 	public double getQValue(State state, Action action){
-		if (this.contains(state,action))
-			return table.get(state).get(action);
-		else 
+		if (actions==null)
 			return 0;
+		return getQValue(getStateIndex(state), action.ordinal());
 	}	
 	
 	/** Returns the action that maximizes Q(state,action) given the state.*/
 	public Action getActionMaxValue(State state){
 		// If there is no entry for the state, returns null.
-		if (!table.containsKey(state) || table.get(state).isEmpty())
+		if (actions==null)
 			return null;
-		// If there is, looks for the best action.
-		Action bestAction=null;
-		double bestValue=Double.NEGATIVE_INFINITY;
-		for (Entry<Action,Double> actionValue: table.get(state).entrySet()){
-			// If the action is the best, updates
-			if (actionValue.getValue()>bestValue){
-				bestAction = actionValue.getKey();
-				bestValue = actionValue.getValue();
-			}
-			// If it is equal to the best, updates randomly.
-			else if (actionValue.getValue()==bestValue && Utils.random.nextFloat()<0.5) {
-				bestAction = actionValue.getKey();
-				bestValue = actionValue.getValue();				
-			}
-		}
-		// Returns the corresponding action.
-		return bestAction;
+		int bestAction = getActionMaxValue(getStateIndex(state));
+		return bestAction<0 ? null : actions[bestAction];
 	}
 	
 	/** Returns the maximum value q(state,action) for a state. */
 	public double getMaxQValue(State state){
-		Action bestAction = getActionMaxValue(state);
-		if ((bestAction==null) || !(contains(state, bestAction)))
+		if (actions==null)
 			return 0;
-		else
-			return table.get(state).get(bestAction);
+		return getMaxQValue(getStateIndex(state));
 	}
 	
 	/** Generates policy from the values in the Qtable */
 	public Policy generatePolicy(){
 		Policy policy = new Policy();
 		// For each state selects the action with the maximum Q(s,a) value.
-		for (State state: table.keySet()){
-			Action action = getActionMaxValue(state);
-			policy.setAction(state, action);
+		for (int stateIdx=0;stateIdx<numStates;stateIdx++){
+			if (states[stateIdx]==null)
+				continue;
+			int action = getActionMaxValue(stateIdx);
+			policy.setAction(states[stateIdx], action<0 ? null : actions[action]);
 		}
 		return policy;
 	}
 	
 	/** Allows printing the table. */
 	public String toString(){
-		String output = "";
-		// Gets the states in the table.
-		Set<State> states = table.keySet();
-		// Prints each one. 
-		for (State state: states){
-			output += state.toString()+" --> ";
-			for (Entry<Action,Double> actionValue: table.get(state).entrySet()){
-				output+= "\t "+actionValue.getKey().getId()+" ("+actionValue.getValue()+")";
-			}
-			output += "\n";
+		StringBuilder output = new StringBuilder();
+		// Prints each state. 
+		for (int stateIdx=0;stateIdx<numStates;stateIdx++){
+			if (states[stateIdx]==null)
+				continue;
+			output.append(states[stateIdx].toString()).append(" --> ");
+			for (int action=0;action<numActions;action++)
+				if (contains(stateIdx, action))
+					output.append("\t ").append(actions[action].getId()).append(" (").append(table[stateIdx*numActions+action]).append(")");
+			output.append("\n");
 		}
-		return output;
+		return output.toString();
 	}
 	
 	/** Main function. Allows testing the class. */	
@@ -0,0 +1,109 @@
+package algorithms.qlearning;
+
+import utils.Utils;
+
+/**
+ * Fixed capacity buffer of the transitions (state, action, reward, next state) experienced by an agent,
+ * so they can be used again to update the Q table. States are the indexes of the table, and the next
+ * state of the transitions reaching a final state is -1. Each field is stored in its own primitive array,
+ * and once the buffer is full, new transitions replace the oldest ones.
+ *
+ * Transitions are sampled uniformly or, if the buffer is prioritized, proportionally to their priority,
+ * (|error| + MIN_PRIORITY)^PRIORITY_EXPONENT, where error is the last temporal difference error of the
+ * transition. New transitions get the highest priority seen, so they are replayed at least once soon.
+ * The priorities are kept in a sum tree: node i is the sum of its children 2i and 2i+1, and the
+ * transition e is the leaf capacity+e, so sampling and updating a priority are O(log capacity).
+ */
+public class ReplayBuffer{
+
+	/* Priority of the transitions with no error, and exponent applied to the errors. */
+	private static final double MIN_PRIORITY = 0.01;
+	private static final double PRIORITY_EXPONENT = 0.6;
+
+	/* Fields of the transitions. */
+	private final int[] states;
+	private final int[] actions;
+	private final double[] rewards;
+	private final int[] nextStates;
+
+	/* Maximum number of transitions. */
+	private final int capacity;
+
+	/* Number of transitions stored, and position of the next one. */
+	private int size = 0;
+	private int next = 0;
+
+	/* Sum tree of the priorities (null if sampling is uniform), and highest priority seen. */
+	private final double[] priorityTree;
+	private double maxPriority = 1;
+
+	/** Creates an empty buffer. */
+	public ReplayBuffer(int capacity, boolean prioritized){
+		this.capacity = capacity;
+		states = new int[capacity];
+		actions = new int[capacity];
+		rewards = new double[capacity];
+		nextStates = new int[capacity];
+		priorityTree = prioritized ? new double[2*capacity] : null;
+	}
+
+	/** Number of transitions stored. */
+	public int size(){ return size; }
+
+	/** Adds a transition, replacing the oldest one if the buffer is full. */
+	public void add(int state, int action, double reward, int nextState){
+		int entry = next;
+		states[entry] = state;
+		actions[entry] = action;
+		rewards[entry] = reward;
+		nextStates[entry] = nextState;
+		next = (next+1)%capacity;
+		if (size<capacity)
+			size++;
+		if (priorityTree!=null)
+			setPriority(entry, maxPriority);
+	}
+
+	/** Returns the position of a random transition. The buffer must not be empty. */
+	public int sample(){
+		if (priorityTree==null)
+			return Utils.random.nextInt(size);
+		// Descends from the root, choosing each child proportionally to its sum.
+		double randPriority = Utils.random.nextDouble()*priorityTree[1];
+		int node = 1;
+		while (node<capacity){
+			if (randPriority<priorityTree[2*node])
+				node = 2*node;
+			else{
+				randPriority -= priorityTree[2*node];
+				node = 2*node+1;
+			}
+		}
+		// Rounding errors could lead to an empty position.
+		return Math.min(node-capacity, size-1);
+	}
+
+	/** Updates the priority of a transition given its new temporal difference error (ignored if sampling is uniform). */
+	public void setError(int entry, double error){
+		if (priorityTree==null)
+			return;
+		double priority = Math.pow(Math.abs(error)+MIN_PRIORITY, PRIORITY_EXPONENT);
+		if (priority>maxPriority)
+			maxPriority = priority;
+		setPriority(entry, priority);
+	}
+
+	/** Sets the priority of a transition and updates the sums of its ancestors. */
+	private void setPriority(int entry, double priority){
+		int node = capacity+entry;
+		priorityTree[node] = priority;
+		for (node/=2;node>=1;node/=2)
+			priorityTree[node] = priorityTree[2*node]+priorityTree[2*node+1];
+	}
+
+	/** Fields of the transition stored in a position. */
+	public int getState(int entry){ return states[entry]; }
+	public int getAction(int entry){ return actions[entry]; }
+	public double getReward(int entry){ return rewards[entry]; }
+	public int getNextState(int entry){ return nextStates[entry]; }
+}
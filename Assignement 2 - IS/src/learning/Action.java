@@ -4,7 +4,13 @@ package learning;
  *  Represents a generic action. Actions can be enumerated and common to each state 
  *  in the problem (for example, mazes), but can also be unique for each state (for example, routing). 
  *  Therefore, an action must be able to return its own description (which is returned as a String, for versatility). 
+ *  
+ *  Actions are also numbered (from 0 to the number of actions of the problem minus one), so that 
+ *  algorithms can index arrays with them. Enumerations already provide this number.
  */
 public interface Action {
 	public String getId();
+	
+	/** Number of the action. Corresponds to its position in LearningProblem.getAllActions(). */
+	public int ordinal();
 }
@@ -0,0 +1,133 @@
+package learning;
+
+import java.util.Arrays;
+
+/**
+ * Policy for MDPLearningProblem problems, stored as an array with the number of the action
+ * (Action.ordinal()) assigned to each state, using the index of the states in the problem.
+ * Getting the action of a state does not require hashing when the index is known, and
+ * two policies are compared with a loop over their arrays. Each state takes one byte, so
+ * problems can have at most 127 actions.
+ */
+public class IndexedPolicy extends Policy {
+
+	/* Problem whose states are indexed. */
+	private MDPLearningProblem problem;
+
+	/* Actions of the problem, sorted by their number. */
+	private Action[] actions;
+
+	/* Number of the action assigned to each state (-1 means that there is no action). */
+	private byte[] actionForState;
+
+	/* Number of states with an action assigned. */
+	private int size;
+
+	/** Creates an empty policy for the problem. */
+	public IndexedPolicy(MDPLearningProblem problem){
+		this.problem = problem;
+		this.actions = problem.getAllActions();
+		this.actionForState = new byte[problem.getNumStates()];
+		reset();
+	}
+
+	// Methods working with the index of the states.
+
+	/** Adds (or replaces) the action corresponding to a certain state. The action is given by its number (-1 removes it). */
+	public void setAction(int stateIdx, int action){
+		if (actionForState[stateIdx]<0 && action>=0)
+			size++;
+		else if (actionForState[stateIdx]>=0 && action<0)
+			size--;
+		actionForState[stateIdx] = (byte) action;
+	}
+
+	/** 
+	 * Replaces the action of a state that already has one by another action (given by its number). The size of the
+	 * policy does not change, so the actions of different states can be replaced from several threads at the same time.
+	 */
+	public void replaceAction(int stateIdx, int action){
+		actionForState[stateIdx] = (byte) action;
+	}
+
+	/** Gets the number of the action corresponding to a certain state (-1 if there is no action). */
+	public int getActionNumber(int stateIdx){ return actionForState[stateIdx]; }
+
+	/** Gets the action corresponding to a certain state. */
+	public Action getAction(int stateIdx){
+		int action = actionForState[stateIdx];
+		return action<0 ? null : actions[action];
+	}
+
+	/** Returns the number of states whose action differs in both policies. */
+	public int diff(IndexedPolicy anotherPolicy){
+		byte[] otherActions = anotherPolicy.actionForState;
+		int numDiffs = 0;
+		for (int stateIdx=0;stateIdx<actionForState.length;stateIdx++)
+			if (actionForState[stateIdx]!=otherActions[stateIdx])
+				numDiffs++;
+		return numDiffs;
+	}
+
+	// Methods inherited from Policy.
+
+	/** Adds (or replaces) the action corresponding to a certain state. */
+	@Override
+	public void setAction(State state, Action action){
+		setAction(problem.getStateIndex(state), action==null ? -1 : action.ordinal());
+	}
+
+	/** Gets the action corresponding to a certain state. */
+	@Override
+	public Action getAction(State state){
+		int stateIdx = problem.getStateIndex(state);
+		return stateIdx<0 ? null : getAction(stateIdx);
+	}
+
+	/** Resets the policy (deletes all the entries).*/
+	@Override
+	public void reset(){
+		Arrays.fill(actionForState, (byte) -1);
+		size = 0;
+	}
+
+	/**
+	 *  Compares two policies. Comparison returns True only if both policies contain a
+	 *  similar set of pair state-action.
+	 */
+	@Override
+	public boolean equals(Object anotherPolicy){
+		// Two indexed policies of the same problem are compared element by element.
+		if (anotherPolicy instanceof IndexedPolicy && ((IndexedPolicy)anotherPolicy).problem==problem)
+			return Arrays.equals(actionForState, ((IndexedPolicy)anotherPolicy).actionForState);
+		// Otherwise, looks up the action of each state in the other policy.
+		if (!(anotherPolicy instanceof Policy)){
+			System.out.println("Trying to compare two objects of different classes.");
+			return false;
+		}
+		if (size!=((Policy)anotherPolicy).size())
+			return false;
+		for (int stateIdx=0;stateIdx<actionForState.length;stateIdx++)
+			if (actionForState[stateIdx]>=0 && ((Policy)anotherPolicy).getAction(problem.getState(stateIdx))!=getAction(stateIdx))
+				return false;
+		return true;
+	}
+
+	/** Hash code consistent with equals for indexed policies. */
+	@Override
+	public int hashCode(){ return Arrays.hashCode(actionForState); }
+
+	/** Size of the policy.*/
+	@Override
+	public int size() { return size; }
+
+	/** Prints the policy as a list. */
+	@Override
+	public String toString(){
+		StringBuilder output = new StringBuilder();
+		for (int stateIdx=0;stateIdx<actionForState.length;stateIdx++)
+			if (actionForState[stateIdx]>=0)
+				output.append("\t").append(problem.getState(stateIdx)).append(" -> ").append(getAction(stateIdx)).append("\n");
+		return output.toString();
+	}
+}
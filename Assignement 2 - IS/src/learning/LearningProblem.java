@@ -29,6 +29,18 @@ public abstract class LearningProblem{
 	/** Returns the set of actions that can be applied to an state */
 	public abstract ArrayList<Action> getPossibleActions(State state);
 	
+	/** 
+	 * Returns the actions that can be applied to an state as an array, in the same order as getPossibleActions.
+	 * Problems can override it to return precomputed arrays (shared between calls), so the array must never be modified.
+	 */
+	public Action[] getPossibleActionArray(State state){
+		ArrayList<Action> pActions = getPossibleActions(state);
+		return pActions.toArray(new Action[pActions.size()]);
+	}
+	
+	/** Returns all the actions of the problem, sorted by their number (Action.ordinal()). */
+	public abstract Action[] getAllActions();
+	
 	/** Returns the state resulting of applying an action to a certain state. */ 
 	public abstract State applyAction(State state, Action action);
 	
@@ -48,8 +60,8 @@ public abstract class LearningProblem{
 	
 	/** Returns a random action. */
 	public Action randomAction(State state) {
-		ArrayList<Action> pActions = getPossibleActions(state);
-		return pActions.get(Utils.random.nextInt(pActions.size()));
+		Action[] pActions = getPossibleActionArray(state);
+		return pActions[Utils.random.nextInt(pActions.length)];
 	}
 	
 	/** Generates and returns a random state */
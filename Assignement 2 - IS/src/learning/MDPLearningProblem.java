@@ -20,6 +20,89 @@ public abstract class MDPLearningProblem extends LearningProblem {
 	/** Returns the entry of the transition model for a pair state/action */ 
 	public abstract StateActionTransModel getTransitionModel(State state, Action action);
 	
+	// State indexing. Each state receives a dense index between 0 and N-1, so that 
+	// algorithms can store their values in plain arrays instead of HashMaps.
+	
+	/* States of the problem, sorted by their index. */
+	private State[] indexedStates = null;
+	
+	/* Index corresponding to each state. */
+	private HashMap<State, Integer> stateIndex = null;
+	
+	/* Compiled transition model, built the first time it is required. */
+	private TransitionMatrix transitionMatrix = null;
+	
+	/** Builds the index of the states from the collection returned by getAllStates(). */
+	private void buildStateIndex(){
+		Collection<State> allStates = getAllStates();
+		indexedStates = allStates.toArray(new State[allStates.size()]);
+	}
+	
+	/** Builds the map from states to indexes. Not needed by problems overriding getStateIndex(). */
+	private void buildStateMap(){
+		if (indexedStates==null)
+			buildStateIndex();
+		// The map is filled before it is published, so other threads never see it incomplete.
+		HashMap<State, Integer> map = new HashMap<State, Integer>(2*indexedStates.length);
+		for (int idx=0;idx<indexedStates.length;idx++)
+			map.put(indexedStates[idx], idx);
+		stateIndex = map;
+	}
+	
+	/** 
+	 * Discards the index of the states (and the compiled transition matrix). Must be called 
+	 * by the problems whenever the instance changes (for example, when a new maze is generated). 
+	 */
+	protected void resetStateIndex(){
+		indexedStates = null;
+		stateIndex = null;
+		transitionMatrix = null;
+	}
+	
+	/** Returns the number of states of the problem. */
+	public int getNumStates(){
+		if (indexedStates==null)
+			buildStateIndex();
+		return indexedStates.length;
+	}
+	
+	/** 
+	 * Returns the index of a state, or -1 if the state does not belong to the problem. 
+	 * By default, it uses a HashMap. Problems can override it to avoid hashing, as long as 
+	 * the indexes follow the order of getAllStates().
+	 */
+	public int getStateIndex(State state){
+		if (stateIndex==null)
+			buildStateMap();
+		Integer idx = stateIndex.get(state);
+		return idx==null ? -1 : idx;
+	}
+	
+	/** Returns the state corresponding to an index. */
+	public State getState(int index){
+		if (indexedStates==null)
+			buildStateIndex();
+		return indexedStates[index];
+	}
+	
+	/** 
+	 * Returns the whole transition model compiled as a matrix. The model is only 
+	 * extracted the first time this method is called.
+	 */
+	public TransitionMatrix getTransitionMatrix(){
+		if (transitionMatrix==null)
+			transitionMatrix = new TransitionMatrix(this);
+		return transitionMatrix;
+	}
+	
+	/** 
+	 * Returns a solver specialised for the problem (see StencilSolver), or null if the problem 
+	 * does not provide one. 
+	 */
+	public StencilSolver getStencilSolver(){
+		return null;
+	}
+	
 	// Other methods already implemented. 
 	
 	/** 
@@ -54,4 +137,56 @@ public abstract class MDPLearningProblem extends LearningProblem {
 		}	 
 		return utility;
 	}
+	
+	// Fused Bellman backups. States are given by their index, utilities are stored in an array indexed in
+	// the same way, and setSums contains the sums of the utilities of the sets of uniform transitions
+	// (see TransitionMatrix.computeSetSums). They work on the compiled model and do not allocate memory.
+	
+	/** Returns the new utility of a state: R(s) + gamma * (highest expected utility of its actions). */
+	public double backup(int stateIdx, double[] utilities, double[] setSums){
+		return getTransitionMatrix().backup(stateIdx, utilities, setSums, gamma);
+	}
+	
+	/** Returns the action of a state with the highest expected utility (null if there is none). */
+	public Action bestAction(int stateIdx, double[] utilities, double[] setSums){
+		TransitionMatrix matrix = getTransitionMatrix();
+		int row = matrix.bestRow(stateIdx, utilities, setSums, gamma);
+		return row<0 ? null : matrix.rowActions[row];
+	}
+	
+	/** 
+	 * Stores in values the expected utility of each possible action of a state, and in actions the 
+	 * actions (both arrays must be large enough). Returns the number of actions.
+	 */
+	public int actionValues(int stateIdx, double[] utilities, double[] setSums, double[] values, Action[] actions){
+		TransitionMatrix matrix = getTransitionMatrix();
+		int numActions = matrix.expectedUtilities(stateIdx, utilities, setSums, gamma, values);
+		System.arraycopy(matrix.rowActions, matrix.actionOffsets[stateIdx], actions, 0, numActions);
+		return numActions;
+	}
+	
+	/** 
+	 * Calculates the expected utility for an state-action. The state is given by its index, and 
+	 * the utilities of all states are stored in an array indexed in the same way.  
+	 */
+	public double getExpectedUtility(int stateIdx, Action action, double[] utilities, double gamma){
+		// If the pair state-action is in the compiled model, uses it.
+		TransitionMatrix matrix = getTransitionMatrix();
+		int row = matrix.getRow(stateIdx, action);
+		if (row>=0)
+			return matrix.getExpectedUtility(stateIdx, row, utilities, gamma);
+		
+		State state = getState(stateIdx);
+		// Extracts the transition model for the state-action (reachable states and probability of reaching them).
+		StateActionTransModel transModel = getTransitionModel(state, action);
+		State[] reachableStates = transModel.getReachableStates();
+		double[] probs = transModel.getProbs();
+		
+		double utility = getReward(state); //	U<s> = R<s> 	
+		for (int reachIdx=0;reachIdx<reachableStates.length;reachIdx++){  
+			// U<s> +=   gamma *    T<s,a,s'>    * (  R <s,a,s'> + U<s'> )
+			utility +=   gamma * probs[reachIdx] *(getTransitionReward(state, action,reachableStates[reachIdx]) + utilities[getStateIndex(reachableStates[reachIdx])]);	
+		}	 
+		return utility;
+	}
 }
@@ -31,6 +31,39 @@ public abstract class MFLearningProblem extends LearningProblem {
 	/** Reads the new state*/
 	public abstract State readNewState(State state, Action action);
 	
+	// Indexes of the states (optional). Problems providing them can step several agents at once.
+	
+	/** Returns the number of indexes of the states (0 if the problem does not index its states). Some indexes may not correspond to states. */
+	public int getNumStateIndexes(){ return 0; }
+	
+	/** Returns the index of a state, between 0 and getNumStateIndexes()-1 (-1 if the problem does not index its states). */
+	public int getStateIndex(State state){ return -1; }
+	
+	/** Returns the state corresponding to an index (null if there is none). */
+	public State getState(int index){ return null; }
+	
+	/** Whether the state corresponding to an index is final. */
+	public boolean isFinal(int index){ return isFinal(getState(index)); }
+	
+	/** 
+	 *  Applies the action actions[i] (number of the action) to the state with index states[i], for 
+	 *  the first count agents, and stores the index of the new state in nextStates[i] and the reward 
+	 *  of the step, R(s') + R(s,a,s'), in rewards[i]. The actions must be possible in each state.
+	 *  
+	 *  By default, each agent is stepped with applyAction. Problems can override it to step all
+	 *  the agents over their own arrays, without creating states or transition models.
+	 */
+	public void applyActions(int[] states, int[] actions, int count, int[] nextStates, double[] rewards){
+		Action[] allActions = getAllActions();
+		for (int i=0;i<count;i++){
+			State state = getState(states[i]);
+			Action action = allActions[actions[i]];
+			State newState = applyAction(state, action);
+			nextStates[i] = getStateIndex(newState);
+			rewards[i] = getReward(newState)+getTransitionReward(state, action, newState);
+		}
+	}
+	
 }
 	
 
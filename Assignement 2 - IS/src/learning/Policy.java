@@ -9,17 +9,24 @@ import java.util.Set;
  */
 public class Policy {
 	
-	/* This HashMap contains the action assigned to each state (the policy). */
-	private HashMap<State, Action> actionForState = new HashMap<State, Action>();
+	/* 
+	 * This HashMap contains the action assigned to each state (the policy). It is created with the 
+	 * first entry, so subclasses storing the policy in other structures do not allocate it. 
+	 */
+	private HashMap<State, Action> actionForState = null;
 	
 	/** Adds (or replaces) the action corresponding to a certain state. */
-	public void setAction(State state, Action action){ actionForState.put(state, action); }
+	public void setAction(State state, Action action){ 
+		if (actionForState==null)
+			actionForState = new HashMap<State, Action>();
+		actionForState.put(state, action); 
+	}
 	
 	/** Gets the action corresponding to a certain state. */
-	public Action getAction(State state){ return actionForState.get(state);	}
+	public Action getAction(State state){ return (actionForState==null) ? null : actionForState.get(state); }
 	
 	/** Resets the policy (deletes all the entries).*/
-	public void reset(){ actionForState = new HashMap<State, Action>(); }
+	public void reset(){ actionForState = null; }
 	
 	/** 
 	 *  Compares two policies. Comparison returns True only if both policies contain a 
@@ -32,8 +39,10 @@ public class Policy {
 			return false;
 		}
 		// Compares the sizes of both policies, that must be equal.
-		if (actionForState.size()!=((Policy)anotherPolicy).actionForState.size())
+		if (size()!=((Policy)anotherPolicy).size())
 			return false;		
+		if (actionForState==null)
+			return true;
 		// If both have the same size, compares all the elements
 		for (Entry<State,Action> entry: actionForState.entrySet()){
 			State state = entry.getKey();
@@ -48,12 +57,14 @@ public class Policy {
 	
 	/** Size of the policy.*/
 	public int size() {
-		return actionForState.size();
+		return (actionForState==null) ? 0 : actionForState.size();
 	}
 	
 	/** Prints the policy as a list. */
 	public String toString(){
 		String output = "";
+		if (actionForState==null)
+			return output;
 		// Gets the states in the table.
 		Set<State> states = actionForState.keySet();
 		for (State state: states){
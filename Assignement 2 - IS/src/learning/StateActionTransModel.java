@@ -21,14 +21,39 @@ import utils.Utils;
  * 
  * StateActionTransModel S1_a = new StateActionTransModel(reachableStates, probs);
  * 
+ * There is also a structured kind of entry, for actions that lead to any state of a set
+ * (except, optionally, one of them) with the same probability. It is created with 
+ * StateActionTransModel.uniform(set, excluded) and does not list the reachable states, 
+ * so the set can be shared by many entries. Algorithms can use the set directly (for 
+ * instance, to calculate an expectation from the sum of the utilities of the set).
+ * 
+ * All the fields are final (the list of a uniform entry is published through a volatile 
+ * field), so entries can be cached and shared by several threads without locks.
  */
 public class StateActionTransModel{
 	
-	/* Reachable states from a certain state when applying a certain action. */
-	private State[] reachableStates;
+	/* Reachable states from a certain state when applying a certain action (null for uniform entries). */
+	private final State[] reachableStates;
+	
+	/* Probability of reaching each state (null for uniform entries). */
+	private final double[] probs;
+	
+	/* Equivalent entry listing the reachable states of a uniform entry, built the first time it is required. */
+	private volatile StateActionTransModel listedUniformSet = null;
+	
+	/* 
+	 * Set of states for the uniform kind of entry (null otherwise), and position in the set of 
+	 * the state that can not be reached (-1 if all of them can be reached). 
+	 */
+	private final State[] uniformSet;
+	private final int excluded;
 	
-	/* Probability of reaching each state. */
-	private double[] probs;
+	/* 
+	 * Alias table (optional). If it has been built, the next state is sampled with the alias 
+	 * method, which needs a single random number instead of the cumulative search. 
+	 */
+	private final double[] aliasProbs;
+	private final int[] aliases;
 	
 	// Utility methods
 	
@@ -38,6 +63,19 @@ public class StateActionTransModel{
 	 * represented by the object. 
 	 */
 	public State genNextState(){		
+		// Uniform entries select one state of the set, skipping the excluded one.
+		// If it is the only state of the set, nothing else can be reached, and the state stays the same.
+		if (uniformSet!=null){
+			if (excluded<0)
+				return uniformSet[Utils.random.nextInt(uniformSet.length)];
+			if (uniformSet.length==1)
+				return uniformSet[excluded];
+			int selected = Utils.random.nextInt(uniformSet.length-1);
+			return uniformSet[selected<excluded ? selected : selected+1];
+		}
+		// If there is an alias table, uses it.
+		if (aliases!=null)
+			return reachableStates[Utils.sampleAlias(0, probs.length, aliasProbs, aliases)];
 		// Generates a random position given this transition model. 
 		double randUniform = Utils.random.nextDouble();
 		int selected = 0;
@@ -52,7 +90,16 @@ public class StateActionTransModel{
 	/** 
 	 * Creates the table with the reachable states and the probabilities.
 	 */
-	public StateActionTransModel(State[] reachableStates, double[] probs){		
+	public StateActionTransModel(State[] reachableStates, double[] probs){
+		this(reachableStates, probs, false);
+	}
+	
+	/** 
+	 * Creates the table with the reachable states and the probabilities. If aliasTable is true, also
+	 * builds the alias table, so that sampling is O(1). This is convenient for models that are 
+	 * created once and sampled many times.
+	 */
+	public StateActionTransModel(State[] reachableStates, double[] probs, boolean aliasTable){		
 		// The sizes of both vectors must be similar.
 		assert reachableStates.length != probs.length: 
 			"The number of reachable states does not correspond with the vector of probabilities";		
@@ -65,22 +112,94 @@ public class StateActionTransModel{
 		// Saves the states and probabilities.
 		this.reachableStates = reachableStates;
 		this.probs = probs;		
+		this.uniformSet = null;
+		this.excluded = -1;
+		// Builds the alias table if required.
+		if (aliasTable){
+			aliasProbs = new double[probs.length];
+			aliases = new int[probs.length];
+			Utils.buildAliasTable(probs, 0, probs.length, aliasProbs, aliases);
+		}
+		else{
+			aliasProbs = null;
+			aliases = null;
+		}
 	}
 	
-	/** Returns the probabilities. */
-	public double[] getProbs(){ return probs; }
+	/** Creates a uniform entry. The set is not copied, so it can be shared by several entries. */
+	private StateActionTransModel(State[] uniformSet, int excluded){
+		this.reachableStates = null;
+		this.probs = null;
+		this.uniformSet = uniformSet;
+		this.excluded = excluded;
+		this.aliasProbs = null;
+		this.aliases = null;
+	}
 	
-	/** Returns the reachable states. */
-	public State[] getReachableStates(){ return reachableStates; }
+	/** 
+	 * Creates an entry where every state of the set, except set[excluded], is reached with
+	 * the same probability. If excluded is -1, all the states of the set can be reached.
+	 */
+	public static StateActionTransModel uniform(State[] set, int excluded){
+		return new StateActionTransModel(set, excluded);
+	}
+	
+	/** Whether the entry is uniform over a set. */
+	public boolean isUniform(){ return uniformSet!=null; }
+	
+	/** Returns the set of a uniform entry (null for other entries). */
+	public State[] getUniformSet(){ return uniformSet; }
+	
+	/** Returns the position in the set of the state that can not be reached (-1 if none). */
+	public int getExcluded(){ return excluded; }
+	
+	/** 
+	 * Lists the reachable states and probabilities of a uniform entry. Several threads 
+	 * can do it at the same time: at worst, the list is built twice.
+	 */
+	private StateActionTransModel listUniformSet(){
+		StateActionTransModel listed = listedUniformSet;
+		if (listed!=null)
+			return listed;
+		int numReachable = (excluded<0) ? uniformSet.length : uniformSet.length-1;
+		State[] reachable = new State[numReachable];
+		double[] reachProbs = new double[numReachable];
+		int reachIdx = 0;
+		for (int setIdx=0;setIdx<uniformSet.length;setIdx++){
+			if (setIdx==excluded)
+				continue;
+			reachable[reachIdx] = uniformSet[setIdx];
+			reachProbs[reachIdx++] = 1.0/numReachable;
+		}
+		listed = new StateActionTransModel(reachable, reachProbs);
+		listedUniformSet = listed;
+		return listed;
+	}
+	
+	/** Returns the probabilities. Uniform entries build the list the first time it is required. */
+	public double[] getProbs(){ 
+		if (probs==null)
+			return listUniformSet().probs;
+		return probs; 
+	}
+	
+	/** Returns the reachable states. Uniform entries build the list the first time it is required. */
+	public State[] getReachableStates(){ 
+		if (reachableStates==null)
+			return listUniformSet().reachableStates;
+		return reachableStates; 
+	}
 
 	/**
 	 * Prints the entry of the transition model represented by the object.
 	 */
 	public String toString(){
 		String output = "";
-		int numStates = reachableStates.length;
+		State[] reachable = getReachableStates();
+		double[] reachProbs = getProbs();
+		int numStates = reachable.length;
 		for (int i=0;i<numStates;i++){
-			output = output+reachableStates[i]+" -> "+probs[i]+"\n";
+			output = output+reachable[i]+" -> "+reachProbs[i]+"\n";
 		}
 		return output;
 	}
@@ -0,0 +1,20 @@
+package learning;
+
+/**
+ * Value iteration specialised for a problem, working on its own structures instead of the
+ * compiled transition model (for instance, on the grid of a maze). Problems providing one
+ * return it in MDPLearningProblem.getStencilSolver(), and ValueIteration uses it in the stencil mode.
+ * States are given by their index in the problem.
+ */
+public interface StencilSolver {
+
+	/**
+	 * Runs value iteration until the maximum change of a sweep is lower than maxDelta, with the
+	 * vector kernel if vector is true and the solver has one. Returns the utilities of the states.
+	 */
+	public double[] solveStates(double gamma, double maxDelta, boolean vector);
+
+	/** Returns the action of a state with the highest expected utility in the last solve (null if there is none). */
+	public Action bestAction(int stateIdx);
+
+}
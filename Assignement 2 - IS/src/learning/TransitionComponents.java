@@ -0,0 +1,202 @@
+package learning;
+
+import java.util.Arrays;
+
+/**
+ * Decomposition of the state graph of a TransitionMatrix into strongly connected components
+ * (Tarjan's algorithm, implemented iteratively so large problems do not overflow the stack).
+ * There is an edge from s to s' if s' can be reached from s with a single action. Uniform rows
+ * are represented by an extra node per set (an edge from each owner to the set, and from the set to
+ * each of its states), so they do not add an edge per pair owner-member.
+ *
+ * Components are numbered in reverse topological order: the states of a component can only reach
+ * states of the same component or of previous ones, so solving them in that order, each component
+ * only depends on utilities that are already final. The components of the state s are
+ * componentStates[componentOffsets[c]] ... componentStates[componentOffsets[c+1]-1] (sorted by index),
+ * with c = componentOf[s].
+ *
+ * The level of a component is 0 if it reaches no other component, or 1 plus the highest level of the
+ * components it reaches. Components with the same level can not reach each other, so they can be solved
+ * at the same time. The components of the level l are levelComponents[levelOffsets[l]] ... levelComponents[levelOffsets[l+1]-1].
+ *
+ * As in TransitionMatrix, the arrays are public, but they must never be modified.
+ */
+public class TransitionComponents {
+
+	/* Number of components (only those containing states). */
+	public final int numComponents;
+
+	/* Component of each state. */
+	public final int[] componentOf;
+
+	/* First state of each component (the array has numComponents+1 elements). */
+	public final int[] componentOffsets;
+
+	/* States of each component. */
+	public final int[] componentStates;
+
+	/* Level of each component. */
+	public final int[] componentLevels;
+
+	/* Number of levels. */
+	public final int numLevels;
+
+	/* First component of each level (the array has numLevels+1 elements). */
+	public final int[] levelOffsets;
+
+	/* Components of each level. */
+	public final int[] levelComponents;
+
+	/* Component containing the node of each set (-1 if it contains no states). */
+	public final int[] setComponents;
+
+	/** Builds the decomposition of the matrix. */
+	public TransitionComponents(TransitionMatrix model){
+		int numStates = model.numStates;
+		int numNodes = numStates+model.sets.length;
+
+		// Edges of the graph (nodes numStates+set are the sets).
+		int[] edgeOffsets = new int[numNodes+1];
+		int[] lastSet = new int[model.sets.length];
+		Arrays.fill(lastSet, -1);
+		for (int state=0;state<numStates;state++){
+			int numEdges = model.rowOffsets[model.actionOffsets[state+1]]-model.rowOffsets[model.actionOffsets[state]];
+			for (int row=model.actionOffsets[state];row<model.actionOffsets[state+1];row++){
+				int set = model.rowSets[row];
+				if (set>=0 && lastSet[set]!=state){
+					lastSet[set] = state;
+					numEdges++;
+				}
+			}
+			edgeOffsets[state+1] = edgeOffsets[state]+numEdges;
+		}
+		for (int set=0;set<model.sets.length;set++)
+			edgeOffsets[numStates+set+1] = edgeOffsets[numStates+set]+model.sets[set].length;
+		int[] edges = new int[edgeOffsets[numNodes]];
+		Arrays.fill(lastSet, -1);
+		for (int state=0;state<numStates;state++){
+			int next = edgeOffsets[state];
+			for (int entry=model.rowOffsets[model.actionOffsets[state]];entry<model.rowOffsets[model.actionOffsets[state+1]];entry++)
+				edges[next++] = model.successors[entry];
+			for (int row=model.actionOffsets[state];row<model.actionOffsets[state+1];row++){
+				int set = model.rowSets[row];
+				if (set>=0 && lastSet[set]!=state){
+					lastSet[set] = state;
+					edges[next++] = numStates+set;
+				}
+			}
+		}
+		for (int set=0;set<model.sets.length;set++)
+			System.arraycopy(model.sets[set], 0, edges, edgeOffsets[numStates+set], model.sets[set].length);
+
+		// Tarjan's algorithm. The recursion is replaced by a stack of nodes with the next edge of each one.
+		int[] index = new int[numNodes];
+		int[] low = new int[numNodes];
+		int[] nextEdge = new int[numNodes];
+		int[] nodeComponent = new int[numNodes];
+		int[] nodeLevel = new int[numNodes];
+		boolean[] onStack = new boolean[numNodes];
+		int[] stack = new int[numNodes];
+		int[] calls = new int[numNodes];
+		Arrays.fill(index, -1);
+		Arrays.fill(nodeComponent, -1);
+		int counter = 0, stackSize = 0, numNodeComponents = 0;
+		int[] componentOrder = new int[numNodes]; // Nodes in the order their components are found
+		int numOrdered = 0;
+		for (int root=0;root<numNodes;root++){
+			if (index[root]>=0)
+				continue;
+			int numCalls = 0;
+			calls[numCalls++] = root;
+			index[root] = low[root] = counter++;
+			nextEdge[root] = edgeOffsets[root];
+			stack[stackSize++] = root;
+			onStack[root] = true;
+			while (numCalls>0){
+				int node = calls[numCalls-1];
+				if (nextEdge[node]<edgeOffsets[node+1]){
+					int successor = edges[nextEdge[node]++];
+					if (index[successor]<0){
+						calls[numCalls++] = successor;
+						index[successor] = low[successor] = counter++;
+						nextEdge[successor] = edgeOffsets[successor];
+						stack[stackSize++] = successor;
+						onStack[successor] = true;
+					}
+					else if (onStack[successor])
+						low[node] = Math.min(low[node], index[successor]);
+					continue;
+				}
+				numCalls--;
+				if (numCalls>0)
+					low[calls[numCalls-1]] = Math.min(low[calls[numCalls-1]], low[node]);
+				if (low[node]!=index[node])
+					continue;
+				// The node is the root of a component, which contains the nodes above it in the stack.
+				int first = numOrdered;
+				int member;
+				do{
+					member = stack[--stackSize];
+					onStack[member] = false;
+					nodeComponent[member] = numNodeComponents;
+					componentOrder[numOrdered++] = member;
+				} while (member!=node);
+				// All the components reached from this one have already been found. Sets are not counted as a level.
+				boolean hasStates = false;
+				for (int i=first;i<numOrdered;i++)
+					hasStates |= componentOrder[i]<numStates;
+				int level = hasStates ? 0 : -1;
+				for (int i=first;i<numOrdered;i++)
+					for (int edge=edgeOffsets[componentOrder[i]];edge<edgeOffsets[componentOrder[i]+1];edge++)
+						if (nodeComponent[edges[edge]]!=numNodeComponents)
+							level = Math.max(level, nodeLevel[edges[edge]]+(hasStates ? 1 : 0));
+				for (int i=first;i<numOrdered;i++)
+					nodeLevel[componentOrder[i]] = level;
+				numNodeComponents++;
+			}
+		}
+
+		// Only the components with states are kept.
+		int[] componentIds = new int[numNodeComponents];
+		Arrays.fill(componentIds, -1);
+		int numStateComponents = 0;
+		for (int i=0;i<numNodes;i++){
+			int node = componentOrder[i];
+			if (node<numStates && componentIds[nodeComponent[node]]<0)
+				componentIds[nodeComponent[node]] = numStateComponents++;
+		}
+		numComponents = numStateComponents;
+		componentOf = new int[numStates];
+		componentOffsets = new int[numComponents+1];
+		componentLevels = new int[numComponents];
+		for (int state=0;state<numStates;state++){
+			componentOf[state] = componentIds[nodeComponent[state]];
+			componentOffsets[componentOf[state]+1]++;
+			componentLevels[componentOf[state]] = nodeLevel[state];
+		}
+		for (int component=0;component<numComponents;component++)
+			componentOffsets[component+1] += componentOffsets[component];
+		componentStates = new int[numStates];
+		int[] next = Arrays.copyOf(componentOffsets, numComponents);
+		for (int state=0;state<numStates;state++)
+			componentStates[next[componentOf[state]]++] = state;
+		setComponents = new int[model.sets.length];
+		for (int set=0;set<model.sets.length;set++)
+			setComponents[set] = componentIds[nodeComponent[numStates+set]];
+
+		// Components of each level.
+		int maxLevel = -1;
+		for (int level: componentLevels)
+			maxLevel = Math.max(maxLevel, level);
+		numLevels = maxLevel+1;
+		levelOffsets = new int[numLevels+1];
+		for (int level: componentLevels)
+			levelOffsets[level+1]++;
+		for (int level=0;level<numLevels;level++)
+			levelOffsets[level+1] += levelOffsets[level];
+		levelComponents = new int[numComponents];
+		next = Arrays.copyOf(levelOffsets, numLevels);
+		for (int component=0;component<numComponents;component++)
+			levelComponents[next[componentLevels[component]]++] = component;
+	}
+}
@@ -0,0 +1,364 @@
+package learning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import utils.Utils;
+
+/**
+ * Compiled version of the whole transition model of an MDPLearningProblem. The model
+ * is extracted only once (calling getTransitionModel for each pair state-action) and
+ * stored in flat arrays using a compressed sparse row (CSR) layout:
+ *
+ *   - The rows (pairs state-action) of the state s are actionOffsets[s] ... actionOffsets[s+1]-1,
+ *     and rowActions[row] is the action corresponding to each row.
+ *   - The entries of the row r are rowOffsets[r] ... rowOffsets[r+1]-1. For each entry,
+ *     successors contains the index of the reachable state, probs the probability of
+ *     reaching it and transRewards the reward of the transition.
+ *
+ * Uniform entries of the model (see StateActionTransModel.uniform) are not listed. Their rows have
+ * no entries, rowSets[row] is the set they are uniform over (sets[rowSets[row]] contains the
+ * indexes of its states), rowExcluded[row] is the position in the set of the state that can not
+ * be reached (-1 if none) and rowSetRewards[row] is the sum of the transition rewards to the reachable states of the set.
+ * Expectations over these rows are calculated from the sum of the utilities of the set, which is
+ * computed only once per sweep with computeSetSums (instead of once per row).
+ *
+ * States are identified by the index given by the problem (see MDPLearningProblem.getStateIndex).
+ * Final states have no rows, as no action is applied to them. For simplicity, the
+ * arrays are public, but they must never be modified.
+ */
+public class TransitionMatrix {
+
+	/* Number of states. */
+	public final int numStates;
+
+	/* Reward of each state. */
+	public final double[] rewards;
+
+	/* Whether each state is final. */
+	public final boolean[] finals;
+
+	/* First row of each state (the array has numStates+1 elements). */
+	public final int[] actionOffsets;
+
+	/* Action corresponding to each row. */
+	public final Action[] rowActions;
+
+	/* First entry of each row (the array has numRows+1 elements). */
+	public final int[] rowOffsets;
+
+	/* Index of the reachable state of each entry. */
+	public final int[] successors;
+
+	/* Probability of each entry. */
+	public final double[] probs;
+
+	/* Transition reward of each entry, R(s,a,s'). */
+	public final double[] transRewards;
+
+	/* Set of each row (-1 for rows with entries). */
+	public final int[] rowSets;
+
+	/* Position in the set of the state that can not be reached from each row (-1 if none or if the row has entries). */
+	public final int[] rowExcluded;
+
+	/* Sum of the transition rewards to the reachable states of the set of each row. */
+	public final double[] rowSetRewards;
+
+	/* States (indexes) of each set. */
+	public final int[][] sets;
+
+	/* Problem, used to read the transition rewards of the uniform rows when sampling. */
+	private final MDPLearningProblem problem;
+
+	/* Alias tables of the rows (see Utils.buildAliasTable), built the first time a state is sampled. */
+	private double[] aliasProbs = null;
+	private int[] aliases = null;
+
+	/* Reverse index, built the first time it is requested. */
+	private TransitionReverseIndex reverseIndex = null;
+
+	/* Strongly connected components, built the first time they are requested. */
+	private TransitionComponents components = null;
+
+	/** Compiles the transition model of the problem. */
+	public TransitionMatrix(MDPLearningProblem problem){
+		numStates = problem.getNumStates();
+		rewards = new double[numStates];
+		finals = new boolean[numStates];
+		actionOffsets = new int[numStates+1];
+
+		// Rows and entries are not known in advance, so the arrays grow while the model is read.
+		ArrayList<Action> actions = new ArrayList<Action>();
+		int[] rowOffs = new int[4*numStates+1];
+		int[] rSets = new int[4*numStates+1];
+		int[] rExcluded = new int[4*numStates+1];
+		double[] rSetRewards = new double[4*numStates+1];
+		int[] succs = new int[16*numStates];
+		double[] ps = new double[16*numStates];
+		double[] trs = new double[16*numStates];
+		int numRows = 0, numEntries = 0;
+		// Sets of the uniform entries (identified by the array of states, which is shared).
+		IdentityHashMap<State[], Integer> setIds = new IdentityHashMap<State[], Integer>();
+		ArrayList<int[]> setList = new ArrayList<int[]>();
+
+		for (int stateIdx=0;stateIdx<numStates;stateIdx++){
+			State state = problem.getState(stateIdx);
+			rewards[stateIdx] = problem.getReward(state);
+			finals[stateIdx] = problem.isFinal(state);
+			actionOffsets[stateIdx] = numRows;
+			if (finals[stateIdx])
+				continue;
+			for (Action action: problem.getPossibleActionArray(state)){
+				StateActionTransModel transModel = problem.getTransitionModel(state, action);
+				// Makes room for the new row.
+				if (numRows+2>rowOffs.length){
+					rowOffs = Arrays.copyOf(rowOffs, 2*rowOffs.length);
+					rSets = Arrays.copyOf(rSets, rowOffs.length);
+					rExcluded = Arrays.copyOf(rExcluded, rowOffs.length);
+					rSetRewards = Arrays.copyOf(rSetRewards, rowOffs.length);
+				}
+				actions.add(action);
+				// Uniform rows store the set instead of the entries.
+				if (transModel.isUniform()){
+					State[] set = transModel.getUniformSet();
+					Integer setId = setIds.get(set);
+					if (setId==null){
+						int[] members = new int[set.length];
+						for (int setIdx=0;setIdx<set.length;setIdx++)
+							members[setIdx] = problem.getStateIndex(set[setIdx]);
+						setId = setList.size();
+						setIds.put(set, setId);
+						setList.add(members);
+					}
+					int excluded = transModel.getExcluded();
+					double setReward = 0;
+					for (int setIdx=0;setIdx<set.length;setIdx++)
+						if (setIdx!=excluded)
+							setReward += problem.getTransitionReward(state, action, set[setIdx]);
+					rSets[numRows] = setId;
+					rExcluded[numRows] = excluded;
+					rSetRewards[numRows] = setReward;
+					rowOffs[numRows++] = numEntries;
+					continue;
+				}
+				State[] reachableStates = transModel.getReachableStates();
+				double[] transProbs = transModel.getProbs();
+				// Makes room for the entries.
+				if (numEntries+reachableStates.length>succs.length){
+					int newLength = Math.max(2*succs.length, numEntries+reachableStates.length);
+					succs = Arrays.copyOf(succs, newLength);
+					ps = Arrays.copyOf(ps, newLength);
+					trs = Arrays.copyOf(trs, newLength);
+				}
+				// Stores the row.
+				rSets[numRows] = -1;
+				rExcluded[numRows] = -1;
+				rowOffs[numRows++] = numEntries;
+				for (int reachIdx=0;reachIdx<reachableStates.length;reachIdx++){
+					succs[numEntries] = problem.getStateIndex(reachableStates[reachIdx]);
+					ps[numEntries] = transProbs[reachIdx];
+					trs[numEntries] = problem.getTransitionReward(state, action, reachableStates[reachIdx]);
+					numEntries++;
+				}
+			}
+		}
+		actionOffsets[numStates] = numRows;
+		rowOffs[numRows] = numEntries;
+
+		// Trims the arrays.
+		rowActions = actions.toArray(new Action[numRows]);
+		rowOffsets = Arrays.copyOf(rowOffs, numRows+1);
+		rowSets = Arrays.copyOf(rSets, numRows);
+		rowExcluded = Arrays.copyOf(rExcluded, numRows);
+		rowSetRewards = Arrays.copyOf(rSetRewards, numRows);
+		sets = setList.toArray(new int[setList.size()][]);
+		successors = Arrays.copyOf(succs, numEntries);
+		probs = Arrays.copyOf(ps, numEntries);
+		transRewards = Arrays.copyOf(trs, numEntries);
+		this.problem = problem;
+	}
+
+	/** Returns the row corresponding to a pair state-action, or -1 if the action can not be applied. */
+	public int getRow(int state, Action action){
+		for (int row=actionOffsets[state];row<actionOffsets[state+1];row++)
+			if (rowActions[row]==action)
+				return row;
+		return -1;
+	}
+
+	/**
+	 * Calculates the sum of the utilities of the states of each set. Must be called before 
+	 * calculating expected utilities, whenever the utilities change.
+	 */
+	public void computeSetSums(double[] utilities, double[] setSums){
+		for (int set=0;set<sets.length;set++){
+			double sum = 0;
+			for (int member: sets[set])
+				sum += utilities[member];
+			setSums[set] = sum;
+		}
+	}
+
+	/**
+	 * Calculates the expected utility for the pair state-action of a row. Equivalent
+	 * to MDPLearningProblem.getExpectedUtility, but using only the arrays. setSums must contain
+	 * the sums of the utilities of the sets (see computeSetSums).
+	 */
+	public double getExpectedUtility(int state, int row, double[] utilities, double[] setSums, double gamma){
+		// Uniform rows use the sum of the set.
+		int set = rowSets[row];
+		if (set>=0){
+			int excluded = rowExcluded[row];
+			int numReachable = (excluded<0) ? sets[set].length : sets[set].length-1;
+			// Without reachable states (a single hole), the model is empty: U<s> = R<s>
+			if (numReachable==0)
+				return rewards[state];
+			double sumUtilities = (excluded<0) ? setSums[set] : setSums[set]-utilities[sets[set][excluded]];
+			//   U<s> =      R<s>      + gamma * ( sum(R<s,a,s'>)      +  sum(U<s'>)  ) / |reachable|
+			return rewards[state] + gamma * (rowSetRewards[row] + sumUtilities) / numReachable;
+		}
+		double utility = rewards[state]; //	U<s> = R<s> 	
+		for (int entry=rowOffsets[row];entry<rowOffsets[row+1];entry++)
+			// U<s> +=   gamma *    T<s,a,s'>   * (  R <s,a,s'>     +      U<s'>              )
+			utility +=   gamma * probs[entry] * (transRewards[entry] + utilities[successors[entry]]);
+		return utility;
+	}
+
+	/**
+	 * Bellman backup of a state: R(s) + gamma * (highest expected utility of its rows), calculated in a
+	 * single pass over the rows and entries of the state, without allocating memory. Final states
+	 * return their reward. setSums must contain the sums of the utilities of the sets.
+	 */
+	public double backup(int state, double[] utilities, double[] setSums, double gamma){
+		if (finals[state])
+			return rewards[state];
+		double reward = rewards[state];
+		double best = Double.NEGATIVE_INFINITY;
+		for (int row=actionOffsets[state];row<actionOffsets[state+1];row++){
+			double utility;
+			int set = rowSets[row];
+			if (set>=0){
+				int excluded = rowExcluded[row];
+				int numReachable = (excluded<0) ? sets[set].length : sets[set].length-1;
+				double sumUtilities = (excluded<0) ? setSums[set] : setSums[set]-utilities[sets[set][excluded]];
+				utility = (numReachable==0) ? reward : reward + gamma * (rowSetRewards[row] + sumUtilities) / numReachable;
+			}
+			else{
+				utility = reward;
+				for (int entry=rowOffsets[row];entry<rowOffsets[row+1];entry++)
+					utility += gamma * probs[entry] * (transRewards[entry] + utilities[successors[entry]]);
+			}
+			if (utility>best)
+				best = utility;
+		}
+		return reward + gamma * best;
+	}
+
+	/**
+	 * Returns the row of a state with the highest expected utility (the first one in case of ties),
+	 * or -1 if the state has no rows.
+	 */
+	public int bestRow(int state, double[] utilities, double[] setSums, double gamma){
+		int bestRow = -1;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int row=actionOffsets[state];row<actionOffsets[state+1];row++){
+			double utility = getExpectedUtility(state, row, utilities, setSums, gamma);
+			if (utility>best){
+				best = utility;
+				bestRow = row;
+			}
+		}
+		return bestRow;
+	}
+
+	/**
+	 * Stores in values the expected utility of each row of a state (in the order of the rows).
+	 * Returns the number of rows.
+	 */
+	public int expectedUtilities(int state, double[] utilities, double[] setSums, double gamma, double[] values){
+		int numRows = actionOffsets[state+1]-actionOffsets[state];
+		for (int rowIdx=0;rowIdx<numRows;rowIdx++)
+			values[rowIdx] = getExpectedUtility(state, actionOffsets[state]+rowIdx, utilities, setSums, gamma);
+		return numRows;
+	}
+
+	/**
+	 * Calculates the expected utility for the pair state-action of a row. Sums of the sets are
+	 * calculated if necessary, so it is slower than the previous method for uniform rows.
+	 */
+	public double getExpectedUtility(int state, int row, double[] utilities, double gamma){
+		double[] setSums = null;
+		if (rowSets[row]>=0){
+			setSums = new double[sets.length];
+			computeSetSums(utilities, setSums);
+		}
+		return getExpectedUtility(state, row, utilities, setSums, gamma);
+	}
+
+	/** 
+	 * Randomly generates the index of the next state given a row (as StateActionTransModel.genNextState does).
+	 * Uses the alias method, so each sample costs a single random number.
+	 */
+	public int genNextState(int row){
+		// Uniform rows select one state of the set, skipping the excluded one (which is kept if it is the only one).
+		int set = rowSets[row];
+		if (set>=0){
+			int[] members = sets[set];
+			int excluded = rowExcluded[row];
+			if (excluded<0)
+				return members[Utils.random.nextInt(members.length)];
+			if (members.length==1)
+				return members[excluded];
+			int selected = Utils.random.nextInt(members.length-1);
+			return members[selected<excluded ? selected : selected+1];
+		}
+		if (aliases==null)
+			buildAliasTables();
+		int offset = rowOffsets[row];
+		return successors[offset+Utils.sampleAlias(offset, rowOffsets[row+1]-offset, aliasProbs, aliases)];
+	}
+
+	/** Returns the reward of the transition from a state to another one, given the row applied. */
+	public double getTransitionReward(int state, int row, int nextState){
+		// Rewards of uniform rows are not stored. They are read from the problem.
+		if (rowSets[row]>=0)
+			return problem.getTransitionReward(problem.getState(state), rowActions[row], problem.getState(nextState));
+		int entry = rowOffsets[row];
+		while (successors[entry]!=nextState)
+			entry++;
+		return transRewards[entry];
+	}
+
+	/** Builds the alias tables of all the rows. */
+	private void buildAliasTables(){
+		double[] rowAliasProbs = new double[successors.length];
+		int[] rowAliases = new int[successors.length];
+		for (int row=0;row<rowActions.length;row++)
+			if (rowSets[row]<0)
+				Utils.buildAliasTable(probs, rowOffsets[row], rowOffsets[row+1]-rowOffsets[row], rowAliasProbs, rowAliases);
+		aliasProbs = rowAliasProbs;
+		aliases = rowAliases;
+	}
+
+	/** Returns the reverse index of the matrix (predecessors of each state). */
+	public TransitionReverseIndex getReverseIndex(){
+		if (reverseIndex==null)
+			reverseIndex = new TransitionReverseIndex(this);
+		return reverseIndex;
+	}
+
+	/** Returns the strongly connected components of the state graph of the matrix. */
+	public TransitionComponents getComponents(){
+		if (components==null)
+			components = new TransitionComponents(this);
+		return components;
+	}
+
+	/** Number of rows (pairs state-action) of the matrix. */
+	public int numRows(){ return rowActions.length; }
+
+	/** Number of entries of the matrix. */
+	public int numEntries(){ return successors.length; }
+}
@@ -0,0 +1,154 @@
+package learning;
+
+import java.util.Arrays;
+
+/**
+ * Reverse index of a TransitionMatrix: for each state, the states from which it can be reached
+ * with a single action. Rows with entries are inverted explicitly, so the predecessors of the state s
+ * are predecessors[predOffsets[s]] ... predecessors[predOffsets[s+1]-1] (each one listed once), and
+ * predProbs contains the highest probability of reaching s from each of them with a single action.
+ *
+ * Uniform rows are not inverted, as every state of a set would have all the owners of the set as
+ * predecessors. Instead, the sets containing the state s are memberSets[memberOffsets[s]] ...
+ * memberSets[memberOffsets[s+1]-1], and setOwners[set] are the states having a row uniform over that set.
+ * The excluded state of a row is not taken into account, so a state can be listed as its own predecessor.
+ *
+ * As in TransitionMatrix, the arrays are public, but they must never be modified.
+ */
+public class TransitionReverseIndex {
+
+	/* First predecessor of each state (the array has numStates+1 elements). */
+	public final int[] predOffsets;
+
+	/* Predecessors through rows with entries. */
+	public final int[] predecessors;
+
+	/* Highest probability of reaching the state from each predecessor. */
+	public final double[] predProbs;
+
+	/* First set of each state (the array has numStates+1 elements). */
+	public final int[] memberOffsets;
+
+	/* Sets containing each state. */
+	public final int[] memberSets;
+
+	/* States with a row uniform over each set. */
+	public final int[][] setOwners;
+
+	/** Builds the reverse index of the matrix. */
+	public TransitionReverseIndex(TransitionMatrix model){
+		int numStates = model.numStates;
+
+		// Counts the entries reaching each state, and fills them (last entry seen by each state avoids duplicates).
+		int[] lastPredecessor = new int[numStates];
+		Arrays.fill(lastPredecessor, -1);
+		int[] counts = new int[numStates+1];
+		for (int state=0;state<numStates;state++)
+			for (int entry=model.rowOffsets[model.actionOffsets[state]];entry<model.rowOffsets[model.actionOffsets[state+1]];entry++){
+				int successor = model.successors[entry];
+				if (lastPredecessor[successor]!=state){
+					lastPredecessor[successor] = state;
+					counts[successor+1]++;
+				}
+			}
+		predOffsets = new int[numStates+1];
+		for (int state=0;state<numStates;state++)
+			predOffsets[state+1] = predOffsets[state]+counts[state+1];
+		predecessors = new int[predOffsets[numStates]];
+		predProbs = new double[predOffsets[numStates]];
+		int[] next = Arrays.copyOf(predOffsets, numStates);
+		Arrays.fill(lastPredecessor, -1);
+		for (int state=0;state<numStates;state++)
+			for (int entry=model.rowOffsets[model.actionOffsets[state]];entry<model.rowOffsets[model.actionOffsets[state+1]];entry++){
+				int successor = model.successors[entry];
+				if (lastPredecessor[successor]!=state){
+					lastPredecessor[successor] = state;
+					predecessors[next[successor]] = state;
+					predProbs[next[successor]++] = model.probs[entry];
+				}
+				else // The predecessor is the last one added to the state.
+					predProbs[next[successor]-1] = Math.max(predProbs[next[successor]-1], model.probs[entry]);
+			}
+
+		// Sets containing each state.
+		memberOffsets = new int[numStates+1];
+		for (int[] set: model.sets)
+			for (int member: set)
+				memberOffsets[member+1]++;
+		for (int state=0;state<numStates;state++)
+			memberOffsets[state+1] += memberOffsets[state];
+		memberSets = new int[memberOffsets[numStates]];
+		next = Arrays.copyOf(memberOffsets, numStates);
+		for (int set=0;set<model.sets.length;set++)
+			for (int member: model.sets[set])
+				memberSets[next[member]++] = set;
+
+		// Owners of each set (each state listed once per set).
+		int[] numOwners = new int[model.sets.length];
+		int[] lastOwner = new int[model.sets.length];
+		Arrays.fill(lastOwner, -1);
+		for (int state=0;state<numStates;state++)
+			for (int row=model.actionOffsets[state];row<model.actionOffsets[state+1];row++){
+				int set = model.rowSets[row];
+				if (set>=0 && lastOwner[set]!=state){
+					lastOwner[set] = state;
+					numOwners[set]++;
+				}
+			}
+		setOwners = new int[model.sets.length][];
+		for (int set=0;set<model.sets.length;set++){
+			setOwners[set] = new int[numOwners[set]];
+			numOwners[set] = 0;
+		}
+		Arrays.fill(lastOwner, -1);
+		for (int state=0;state<numStates;state++)
+			for (int row=model.actionOffsets[state];row<model.actionOffsets[state+1];row++){
+				int set = model.rowSets[row];
+				if (set>=0 && lastOwner[set]!=state){
+					lastOwner[set] = state;
+					setOwners[set][numOwners[set]++] = state;
+				}
+			}
+	}
+
+	/**
+	 * Returns the states sorted by their distance (number of actions) to the given states, computed
+	 * with a breadth-first search over the predecessors. States that can not reach them are placed at the end.
+	 */
+	public int[] sortByDistance(int[] targets){
+		int numStates = predOffsets.length-1;
+		int[] order = new int[numStates];
+		boolean[] visited = new boolean[numStates];
+		boolean[] visitedSets = new boolean[setOwners.length];
+		int numVisited = 0;
+		for (int target: targets)
+			if (!visited[target]){
+				visited[target] = true;
+				order[numVisited++] = target;
+			}
+		// The order array is also the queue of the search.
+		for (int head=0;head<numVisited;head++){
+			int state = order[head];
+			for (int pred=predOffsets[state];pred<predOffsets[state+1];pred++)
+				if (!visited[predecessors[pred]]){
+					visited[predecessors[pred]] = true;
+					order[numVisited++] = predecessors[pred];
+				}
+			for (int member=memberOffsets[state];member<memberOffsets[state+1];member++){
+				int set = memberSets[member];
+				if (visitedSets[set])
+					continue;
+				visitedSets[set] = true;
+				for (int owner: setOwners[set])
+					if (!visited[owner]){
+						visited[owner] = true;
+						order[numVisited++] = owner;
+					}
+			}
+		}
+		for (int state=0;state<numStates;state++)
+			if (!visited[state])
+				order[numVisited++] = state;
+		return order;
+	}
+}
@@ -1,6 +1,8 @@
 package problems.maze;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
 
 import utils.*;
@@ -15,6 +17,10 @@ public class Maze{
 	public static final int WATER = 3;
 	public static final int CAT = 4;
 	public static final int CHEESE = 5;
+	
+	/* Rewards of the final cells */
+	public static final double CAT_REWARD = -100;
+	public static final double CHEESE_REWARD = 100;
 		
 	/* Size */
 	protected int size = 11;
@@ -39,6 +45,20 @@ public class Maze{
 	
 	/* List of holes */
 	protected ArrayList<Position> holeList = new ArrayList<Position>();
+	
+	/* 
+	 * States corresponding to each cell, indexed by cellIndex(x,y) (null for walls). They are 
+	 * created only once, so problems return always the same instance for each cell. 
+	 */
+	protected MazeState[] states;
+	
+	/* States of the holes (without repetitions), and number of the hole of each cell (-1 if it is not a hole). */
+	protected MazeState[] holeStates;
+	protected int[] holeNumber;
+	
+	/* Final cells (cats and cheese) and reward of each cell, indexed by cellIndex(x,y). */
+	protected BitSet finalCells;
+	protected double[] rewards;
 
 	/** Creates a maze with seed equals 0 */
 	public Maze(int size){
@@ -156,6 +176,74 @@ public class Maze{
 			hamsterY=random.nextInt(size);
 		}while (cells[hamsterX][hamsterY]!=EMPTY);
 		posHamster = new Position(hamsterX, hamsterY);		
+		
+		// Creates the state of each cell
+		createStates();
+		// Final cells and rewards
+		createRewards();
+	}
+	
+	/** Marks the final cells and stores the reward of each cell, so that they can be read without searching the lists. */
+	private void createRewards(){
+		finalCells = new BitSet(size*size);
+		rewards = new double[size*size];
+		finalCells.set(cellIndex(posCheese.x, posCheese.y));
+		rewards[cellIndex(posCheese.x, posCheese.y)] = CHEESE_REWARD;
+		for (Position catPos: posCats){
+			finalCells.set(cellIndex(catPos.x, catPos.y));
+			rewards[cellIndex(catPos.x, catPos.y)] = CAT_REWARD;
+		}
+	}
+	
+	/** Whether a cell is final (there is a cat or the cheese). */
+	public boolean isFinal(int x, int y){
+		return finalCells.get(cellIndex(x,y));
+	}
+	
+	/** Returns the reward of a cell. */
+	public double reward(int x, int y){
+		return rewards[cellIndex(x,y)];
+	}
+	
+	/** Creates the (unique) state corresponding to each cell that is not a wall. */
+	private void createStates(){
+		states = new MazeState[size*size];
+		for(int posX=0;posX<size;posX++)
+			for(int posY=0;posY<size;posY++)
+				if (cells[posX][posY]!=WALL)
+					states[cellIndex(posX,posY)] = new MazeState(posX, posY, cellIndex(posX,posY));
+		// States of the holes. A position can appear twice in the list of holes, but only one state is kept.
+		ArrayList<MazeState> holes = new ArrayList<MazeState>();
+		holeNumber = new int[size*size];
+		Arrays.fill(holeNumber, -1);
+		for (Position holePos: holeList){
+			int cell = cellIndex(holePos.x, holePos.y);
+			if (holeNumber[cell]<0){
+				holeNumber[cell] = holes.size();
+				holes.add(states[cell]);
+			}
+		}
+		holeStates = holes.toArray(new MazeState[holes.size()]);
+	}
+	
+	/** Returns the number of a hole in the array of holes (-1 if the cell is not a hole). */
+	public int holeNumber(int x, int y){
+		return holeNumber[cellIndex(x,y)];
+	}
+	
+	/** Returns the index of a cell in the flat arrays of the maze. */
+	public int cellIndex(int x, int y){
+		return x*size+y;
+	}
+	
+	/** Returns the state corresponding to a cell (null if it is a wall). */
+	public MazeState state(int x, int y){
+		return states[cellIndex(x,y)];
+	}
+	
+	/** Returns the state corresponding to a position (null if it is a wall). */
+	public MazeState state(Position position){
+		return states[cellIndex(position.x,position.y)];
 	}
 
 	/** Transforms the maze into a string. */
@@ -2,7 +2,9 @@ package problems.maze;
 
 import static java.lang.Math.sqrt;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 
 import learning.*;
 import visualization.*;
@@ -13,6 +15,21 @@ import utils.*;
  */
 public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, ProblemVisualizable {
 
+    /**
+     * Number of actions of the problem.
+     */
+    private static final int NUM_ACTIONS = MazeAction.values().length;
+
+    /**
+     * Probability of moving to each reachable position other than the intended one.
+     */
+    static final double PROB_ERROR = 0.1;
+
+    /**
+     * Order in which the possible actions are listed.
+     */
+    private static final MazeAction[] ACTION_ORDER = {MazeAction.LEFT, MazeAction.RIGHT, MazeAction.UP, MazeAction.DOWN, MazeAction.DIVE};
+
     /**
      * Size of the problem. Default value is 10.
      */
@@ -23,12 +40,29 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
      */
     protected Maze maze;
 
+    /**
+     * Transition models, created the first time they are used and indexed by cell and action.
+     * Models include their alias table (or are uniform), so sampling the next state is O(1).
+     */
+    private volatile StateActionTransModel[] transModels = null;
+
+    /**
+     * States of the problem (built only once) and index of each cell in that list (-1 if it is not a state).
+     */
+    private volatile Collection<State> allStates = null;
+    private int[] indexOfCell = null;
+
+    /**
+     * Actions that can be done in each cell, built only once (indexed by cell).
+     */
+    private volatile Action[][] cellActions = null;
+
     /**
      * Constructors
      */
     public MazeProblemMDP() {
         this.maze = new Maze(size, 0);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     public MazeProblemMDP(int size) {
@@ -39,13 +73,13 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
     public MazeProblemMDP(int size, int seed) {
         this.size = size;
         this.maze = new Maze(size, seed);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     public MazeProblemMDP(Maze maze) {
         this.size = maze.size;
         this.maze = maze;
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     /**
@@ -54,7 +88,13 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
     private void generateInstance(int size, int seed) {
         this.size = size;
         this.maze = new Maze(size, seed);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
+        // The states of the previous instance are no longer valid.
+        allStates = null;
+        indexOfCell = null;
+        cellActions = null;
+        transModels = null;
+        resetStateIndex();
     }
 
     /**
@@ -70,7 +110,8 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
      */
     @Override
     public boolean isFinal(State state) {
-        return ((MazeState) state).position.equals(maze.posCheese) || maze.posCats.contains(((MazeState) state).position);
+        MazeState mazeState = (MazeState) state;
+        return maze.isFinal(mazeState.X(), mazeState.Y());
     }
 
     /**
@@ -78,35 +119,86 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
      */
     @Override
     public ArrayList<Action> getPossibleActions(State state) {
+        return new ArrayList<Action>(Arrays.asList(getPossibleActionArray(state)));
+    }
+
+    /**
+     * Returns the actions that can be done at each step. Arrays are precomputed per cell
+     * and shared, so they must not be modified.
+     */
+    @Override
+    public Action[] getPossibleActionArray(State state) {
+        Action[][] actions = cellActions;
+        if (actions == null) {
+            actions = buildCellActions();
+        }
         MazeState mazeState = (MazeState) state;
-        ArrayList<Action> possibleActions = new ArrayList<Action>();
-        int x = mazeState.X(), y = mazeState.Y();
+        return actions[maze.cellIndex(mazeState.X(), mazeState.Y())];
+    }
+
+    /**
+     * Builds the actions of each cell. Cells with the same actions share the same array. The table
+     * is only published when it is complete, so other threads never see it partly filled.
+     */
+    private Action[][] buildCellActions() {
+        Action[][] actionsOfMask = new Action[1 << NUM_ACTIONS][];
+        Action[][] actions = new Action[maze.size * maze.size][];
+        for (int x = 0; x < maze.size; x++) {
+            for (int y = 0; y < maze.size; y++) {
+                int mask = actionMask(x, y);
+                if (actionsOfMask[mask] == null) {
+                    ArrayList<Action> possibleActions = new ArrayList<Action>();
+                    for (MazeAction action : ACTION_ORDER) {
+                        if ((mask & (1 << action.ordinal())) != 0) {
+                            possibleActions.add(action);
+                        }
+                    }
+                    actionsOfMask[mask] = possibleActions.toArray(new Action[possibleActions.size()]);
+                }
+                actions[maze.cellIndex(x, y)] = actionsOfMask[mask];
+            }
+        }
+        cellActions = actions;
+        return actions;
+    }
 
+    /**
+     * Returns the actions that can be done in a cell as a mask (one bit per action, given by its ordinal).
+     */
+    private int actionMask(int x, int y) {
+        int mask = 0;
         if (x - 1 >= 0) {
             if (maze.cells[x - 1][y] != 1) {
-                possibleActions.add(MazeAction.LEFT);
+                mask |= 1 << MazeAction.LEFT.ordinal();
             }
         }
         if (x + 1 <= maze.size - 1) {
             if (maze.cells[x + 1][y] != 1) {
-                possibleActions.add(MazeAction.RIGHT);
+                mask |= 1 << MazeAction.RIGHT.ordinal();
             }
         }
         if (y - 1 >= 0) {
             if (maze.cells[x][y - 1] != 1) {
-                possibleActions.add(MazeAction.UP);
+                mask |= 1 << MazeAction.UP.ordinal();
             }
         }
         if (y + 1 <= maze.size - 1) {
             if (maze.cells[x][y + 1] != 1) {
-                possibleActions.add(MazeAction.DOWN);
+                mask |= 1 << MazeAction.DOWN.ordinal();
             }
         }
         if (maze.cells[x][y] == 2) {
-            possibleActions.add(MazeAction.DIVE);
+            mask |= 1 << MazeAction.DIVE.ordinal();
         }
-        // Returns the actions.
-        return possibleActions;
+        return mask;
+    }
+
+    /**
+     * Returns all the actions of the problem.
+     */
+    @Override
+    public Action[] getAllActions() {
+        return MazeAction.values();
     }
 
     /**
@@ -115,13 +207,7 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
     @Override
     public double getReward(State state) {
         MazeState mazeState = (MazeState) state;
-        if (maze.posCats.contains(mazeState.position)) {
-            return -100;
-        }
-        if (maze.posCheese.equals(mazeState.position)) {
-            return 100;
-        }
-        return 0;
+        return maze.reward(mazeState.X(), mazeState.Y());
     }
 
     /**
@@ -147,26 +233,64 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
 
     // From MDPLearningProblem
     /**
-     * Returns a collection with all possible states.
+     * Returns a collection with all possible states. The collection is only built once.
      */
     @Override
     public Collection<State> getAllStates() {
-        ArrayList<State> allStates = new ArrayList<State>();
+        if (allStates == null) {
+            buildAllStates();
+        }
+        return allStates;
+    }
+
+    /**
+     * Builds the list of states and the index of each cell in it. Both are published when they
+     * are complete (the index before the list, which is volatile).
+     */
+    private void buildAllStates() {
+        ArrayList<State> states = new ArrayList<State>();
+        int[] cellIndexes = new int[maze.size * maze.size];
+        Arrays.fill(cellIndexes, -1);
         for (int i = 0; i < maze.size; i++) {
             for (int j = 0; j < maze.size; j++) {
-                if (maze.cells[i][j] != 1 && !this.getPossibleActions(new MazeState(i, j)).isEmpty()) {
-                    allStates.add(new MazeState(i, j));
+                if (maze.cells[i][j] != 1 && this.getPossibleActionArray(maze.state(i, j)).length > 0) {
+                    cellIndexes[maze.cellIndex(i, j)] = states.size();
+                    states.add(maze.state(i, j));
                 }
             }
         }
-        return allStates;
+        indexOfCell = cellIndexes;
+        allStates = Collections.unmodifiableList(states);
+    }
+
+    /**
+     * Returns the index of a state. It is read from the cell, so no hashing is required.
+     */
+    @Override
+    public int getStateIndex(State state) {
+        if (allStates == null) {
+            buildAllStates();
+        }
+        MazeState mazeState = (MazeState) state;
+        if (mazeState.X() < 0 || mazeState.X() >= maze.size || mazeState.Y() < 0 || mazeState.Y() >= maze.size) {
+            return -1;
+        }
+        return indexOfCell[maze.cellIndex(mazeState.X(), mazeState.Y())];
+    }
+
+    /**
+     * Mazes can be solved directly on the grid (see MazeStencilSolver).
+     */
+    @Override
+    public StencilSolver getStencilSolver() {
+        return new MazeStencilSolver(this);
     }
 
     /**
      * Provides access to the action transition model for a pair state/action
      */
     public StateActionTransModel getTransitionModel(State state, Action action) {
-        return this.mazeTransitionModel(state, action);
+        return this.cachedTransitionModel(state, action);
     }
 
     /**
@@ -184,21 +308,9 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
 
         /* First considers diving. */
         if (action == MazeAction.DIVE) {
-            // It must be a hole. Gets the outputs.
-            Position inputHolePos = new Position(fromX, fromY);
-            // It considers all holes but one
-            reachable = new State[maze.numHoles - 1];
-            probs = new double[maze.numHoles - 1];
-            int holeNum = 0;
-            for (Position holePos : maze.holeList) {
-                if (holePos.equals(inputHolePos)) {
-                    continue;
-                }
-                reachable[holeNum] = new MazeState(holePos);
-                probs[holeNum++] = 1.0 / (maze.numHoles - 1);
-            }
-            // Returns 
-            return new StateActionTransModel(reachable, probs);
+            // It must be a hole. All the other holes can be reached with the same probability,
+            // so the model is uniform over the (shared) array of holes, excluding this one.
+            return StateActionTransModel.uniform(maze.holeStates, maze.holeNumber(fromX, fromY));
         }
 
         /* Otherwise it is a simple movement.*/
@@ -221,12 +333,12 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
         probs = new double[numReachablePos];
 
         // Probability of error 0.1 times each position.
-        double probError = 0.1;
+        double probError = PROB_ERROR;
         double probSuccess = 1.0 - probError * (numReachablePos - 1);
 
         int ind = 0;
         if ((fromY > 0) && (maze.cells[fromX][fromY - 1] != Maze.WALL)) { // UP
-            reachable[ind] = new MazeState(fromX, fromY - 1);
+            reachable[ind] = maze.state(fromX, fromY - 1);
             if (action == MazeAction.UP) {
                 probs[ind] = probSuccess;
             } else {
@@ -236,7 +348,7 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
         }
 
         if ((fromY < maze.size - 1) && (maze.cells[fromX][fromY + 1] != Maze.WALL)) { // DOWN
-            reachable[ind] = new MazeState(fromX, fromY + 1);
+            reachable[ind] = maze.state(fromX, fromY + 1);
             if (action == MazeAction.DOWN) {
                 probs[ind] = probSuccess;
             } else {
@@ -246,7 +358,7 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
         }
 
         if ((fromX > 0) && (maze.cells[fromX - 1][fromY] != Maze.WALL)) { // LEFT
-            reachable[ind] = new MazeState(fromX - 1, fromY);
+            reachable[ind] = maze.state(fromX - 1, fromY);
             if (action == MazeAction.LEFT) {
                 probs[ind] = probSuccess;
             } else {
@@ -256,7 +368,7 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
         }
 
         if ((fromX < maze.size - 1) && (maze.cells[fromX + 1][fromY] != Maze.WALL)) { // RIGHT
-            reachable[ind] = new MazeState(fromX + 1, fromY);
+            reachable[ind] = maze.state(fromX + 1, fromY);
             if (action == MazeAction.RIGHT) {
                 probs[ind] = probSuccess;
             } else {
@@ -266,7 +378,28 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
         }
 
         // Returns 
-        return new StateActionTransModel(reachable, probs);
+        return new StateActionTransModel(reachable, probs, true);
+    }
+
+    /**
+     * Returns the transition model for a pair state/action. Models are only generated once.
+     */
+    private StateActionTransModel cachedTransitionModel(State state, Action action) {
+        // Several threads can use the cache: at worst, a model is generated twice. Models only have final
+        // fields, so a thread reading one stored by another thread sees it completely built.
+        StateActionTransModel[] models = transModels;
+        if (models == null) {
+            models = new StateActionTransModel[maze.size * maze.size * NUM_ACTIONS];
+            transModels = models;
+        }
+        MazeState mazeState = (MazeState) state;
+        int entry = maze.cellIndex(mazeState.X(), mazeState.Y()) * NUM_ACTIONS + action.ordinal();
+        StateActionTransModel transModel = models[entry];
+        if (transModel == null) {
+            transModel = mazeTransitionModel(state, action);
+            models[entry] = transModel;
+        }
+        return transModel;
     }
 
     // Utilities
@@ -301,7 +434,7 @@ public class MazeProblemMDP extends MDPLearningProblem implements MazeProblem, P
                 validCell = true;
             }
         } while (!validCell);
-        return new MazeState(posX, posY);
+        return maze.state(posX, posY);
     }
 
     /**
@@ -2,6 +2,7 @@ package problems.maze;
 
 import static java.lang.Math.sqrt;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import learning.*;
@@ -13,6 +14,34 @@ import utils.*;
  */
 public class MazeProblemMF extends MFLearningProblem implements MazeProblem, ProblemVisualizable {
 
+    /**
+     * Number of actions of the problem.
+     */
+    private static final int NUM_ACTIONS = MazeAction.values().length;
+
+    /**
+     * Actions that can be done in a cell without hole, and in a cell with hole.
+     */
+    private static final Action[] MOVES = {MazeAction.DOWN, MazeAction.LEFT, MazeAction.RIGHT, MazeAction.UP};
+    private static final Action[] MOVES_AND_DIVE = {MazeAction.DOWN, MazeAction.LEFT, MazeAction.RIGHT, MazeAction.UP, MazeAction.DIVE};
+
+    /**
+     * Probability of moving to each of the directions not selected.
+     */
+    private static final double PROB_ERROR = 0.1;
+
+    /**
+     * Direction (position in the transition model: UP, DOWN, LEFT, RIGHT) of each move, indexed by the number of the action.
+     */
+    private static final int[] MOVE_DIRECTIONS = new int[NUM_ACTIONS];
+
+    static {
+        MOVE_DIRECTIONS[MazeAction.UP.ordinal()] = 0;
+        MOVE_DIRECTIONS[MazeAction.DOWN.ordinal()] = 1;
+        MOVE_DIRECTIONS[MazeAction.LEFT.ordinal()] = 2;
+        MOVE_DIRECTIONS[MazeAction.RIGHT.ordinal()] = 3;
+    }
+
     /**
      * Size of the problem. Default value is 10.
      */
@@ -23,12 +52,29 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
      */
     protected Maze maze;
 
+    /**
+     * Transition models, created the first time they are used and indexed by cell and action.
+     * Models include their alias table (or are uniform), so sampling the next state is O(1).
+     */
+    private volatile StateActionTransModel[] transModels = null;
+
+    /**
+     * Cell reached from each cell moving in each direction (the same cell if there is a wall or the
+     * limit of the maze), indexed by cell*4+direction. Used by applyActions, and built the first time it is required.
+     */
+    private volatile int[] neighbourCells = null;
+
+    /**
+     * Cell of each hole (in the order of the holes of the maze).
+     */
+    private int[] holeCells;
+
     /**
      * Constructors
      */
     public MazeProblemMF() {
         this.maze = new Maze(size, 0);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     public MazeProblemMF(int size) {
@@ -39,13 +85,13 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
     public MazeProblemMF(int size, int seed) {
         this.size = size;
         this.maze = new Maze(size, seed);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     public MazeProblemMF(Maze maze) {
         this.size = maze.size;
         this.maze = maze;
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
     }
 
     /**
@@ -54,7 +100,9 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
     private void generateInstance(int size, int seed) {
         this.size = size;
         this.maze = new Maze(size, seed);
-        initialState = new MazeState(maze.posHamster.x, maze.posHamster.y);
+        initialState = maze.state(maze.posHamster.x, maze.posHamster.y);
+        transModels = null;
+        neighbourCells = null;
     }
 
     /**
@@ -70,7 +118,8 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
      */
     @Override
     public boolean isFinal(State state) {
-        return ((MazeState) state).position.equals(maze.posCheese) || maze.posCats.contains(((MazeState) state).position);
+        MazeState mazeState = (MazeState) state;
+        return maze.isFinal(mazeState.X(), mazeState.Y());
     }
 
     /**
@@ -78,17 +127,26 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
      */
     @Override
     public ArrayList<Action> getPossibleActions(State state) {
+        return new ArrayList<Action>(Arrays.asList(getPossibleActionArray(state)));
+    }
+
+    /**
+     * Returns the actions that can be done at each step. The arrays are shared, so they must not be modified.
+     * Diving is not offered if there is no other hole: the agent would stay in the hole without any cost,
+     * and a greedy learner could never leave it.
+     */
+    @Override
+    public Action[] getPossibleActionArray(State state) {
         MazeState mazeState = (MazeState) state;
-        ArrayList<Action> possibleActions = new ArrayList<Action>();
-        int x = mazeState.X(), y = mazeState.Y();
-        possibleActions.add(MazeAction.DOWN);
-        possibleActions.add(MazeAction.LEFT);
-        possibleActions.add(MazeAction.RIGHT);
-        possibleActions.add(MazeAction.UP);
-        if (maze.cells[x][y] == 2) {
-            possibleActions.add(MazeAction.DIVE);
-        }
-        return possibleActions;
+        return (maze.cells[mazeState.X()][mazeState.Y()] == 2 && maze.holeStates.length > 1) ? MOVES_AND_DIVE : MOVES;
+    }
+
+    /**
+     * Returns all the actions of the problem.
+     */
+    @Override
+    public Action[] getAllActions() {
+        return MazeAction.values();
     }
 
     /**
@@ -97,13 +155,7 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
     @Override
     public double getReward(State state) {
         MazeState mazeState = (MazeState) state;
-        if (maze.posCats.contains(mazeState.position)) {
-            return -100;
-        } 
-        if (maze.posCheese.equals(mazeState.position)) {
-            return 100;
-        }
-        return 0;
+        return maze.reward(mazeState.X(), mazeState.Y());
     }
 
     /**
@@ -143,21 +195,9 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
 
         /* First considers diving. */
         if (action == MazeAction.DIVE) {
-            // It must be a hole. Gets the outputs.
-            Position inputHolePos = new Position(fromX, fromY);
-            // It considers all holes but one
-            reachable = new State[maze.numHoles - 1];
-            probs = new double[maze.numHoles - 1];
-            int holeNum = 0;
-            for (Position holePos : maze.holeList) {
-                if (holePos.equals(inputHolePos)) {
-                    continue;
-                }
-                reachable[holeNum] = new MazeState(holePos);
-                probs[holeNum++] = 1.0 / (maze.numHoles - 1);
-            }
-            // Returns 
-            return new StateActionTransModel(reachable, probs);
+            // It must be a hole. All the other holes can be reached with the same probability,
+            // so the model is uniform over the (shared) array of holes, excluding this one.
+            return StateActionTransModel.uniform(maze.holeStates, maze.holeNumber(fromX, fromY));
         }
 
         // Creates the transition model.
@@ -165,7 +205,7 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
         probs = new double[4];
 
         // Probability of error 0.1 times each position.
-        double probError = 0.1;
+        double probError = PROB_ERROR;
         double probSuccess = 1.0 - probError * (4 - 1);
 
         int ind = 0;
@@ -180,9 +220,9 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
         }
         // Reached state
         if ((fromY > 0) && (maze.cells[fromX][fromY - 1] != Maze.WALL)) {
-            reachable[ind] = new MazeState(fromX, fromY - 1); // Can move
+            reachable[ind] = maze.state(fromX, fromY - 1); // Can move
         } else {
-            reachable[ind] = new MazeState(fromX, fromY); // Can't move
+            reachable[ind] = maze.state(fromX, fromY); // Can't move
         }
 
         ind++;
@@ -197,9 +237,9 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
         }
         // Reached state
         if ((fromY < maze.size - 1) && (maze.cells[fromX][fromY + 1] != Maze.WALL)) {
-            reachable[ind] = new MazeState(fromX, fromY + 1); // Can move
+            reachable[ind] = maze.state(fromX, fromY + 1); // Can move
         } else {
-            reachable[ind] = new MazeState(fromX, fromY); // Can't move
+            reachable[ind] = maze.state(fromX, fromY); // Can't move
         }
 
         ind++;
@@ -214,9 +254,9 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
         }
         // Reached state
         if ((fromX > 0) && (maze.cells[fromX - 1][fromY] != Maze.WALL)) {
-            reachable[ind] = new MazeState(fromX - 1, fromY); // Can move
+            reachable[ind] = maze.state(fromX - 1, fromY); // Can move
         } else {
-            reachable[ind] = new MazeState(fromX, fromY); // Can't move
+            reachable[ind] = maze.state(fromX, fromY); // Can't move
         }
 
         ind++;
@@ -231,13 +271,34 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
         }
         // Reached state
         if ((fromX < maze.size - 1) && (maze.cells[fromX + 1][fromY] != Maze.WALL)) {
-            reachable[ind] = new MazeState(fromX + 1, fromY); // Can move
+            reachable[ind] = maze.state(fromX + 1, fromY); // Can move
         } else {
-            reachable[ind] = new MazeState(fromX, fromY); // Can't move
+            reachable[ind] = maze.state(fromX, fromY); // Can't move
         }
 
         // Returns 
-        return new StateActionTransModel(reachable, probs);
+        return new StateActionTransModel(reachable, probs, true);
+    }
+
+    /**
+     * Returns the transition model for a pair state/action. Models are only generated once.
+     */
+    private StateActionTransModel cachedTransitionModel(State state, Action action) {
+        // Several threads can use the cache: at worst, a model is generated twice. Models only have final
+        // fields, so a thread reading one stored by another thread sees it completely built.
+        StateActionTransModel[] models = transModels;
+        if (models == null) {
+            models = new StateActionTransModel[maze.size * maze.size * NUM_ACTIONS];
+            transModels = models;
+        }
+        MazeState mazeState = (MazeState) state;
+        int entry = maze.cellIndex(mazeState.X(), mazeState.Y()) * NUM_ACTIONS + action.ordinal();
+        StateActionTransModel transModel = models[entry];
+        if (transModel == null) {
+            transModel = mazeTransitionModel(state, action);
+            models[entry] = transModel;
+        }
+        return transModel;
     }
 
     // From MFLearningModel
@@ -254,11 +315,115 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
      */
     @Override
     public State readNewState(State state, Action action) {
-        StateActionTransModel transModel = mazeTransitionModel(state, action);
+        StateActionTransModel transModel = cachedTransitionModel(state, action);
 
         return transModel.genNextState();
     }
 
+    // Indexes of the states (cells of the maze)
+    /**
+     * Returns the number of cells. Walls do not correspond to states.
+     */
+    @Override
+    public int getNumStateIndexes() {
+        return maze.size * maze.size;
+    }
+
+    /**
+     * Returns the index of the cell of a state.
+     */
+    @Override
+    public int getStateIndex(State state) {
+        MazeState mazeState = (MazeState) state;
+        return maze.cellIndex(mazeState.X(), mazeState.Y());
+    }
+
+    /**
+     * Returns the state of a cell (null for walls).
+     */
+    @Override
+    public State getState(int index) {
+        return maze.states[index];
+    }
+
+    /**
+     * Whether a cell is final.
+     */
+    @Override
+    public boolean isFinal(int index) {
+        return maze.finalCells.get(index);
+    }
+
+    /**
+     * Steps several agents at once over the cells of the maze. Samples the same distribution as the
+     * transition models (the selected direction with probability 1-3*PROB_ERROR, and each of the
+     * others with PROB_ERROR, or a uniform hole when diving), with the same rewards, but no states
+     * or models are created.
+     */
+    @Override
+    public void applyActions(int[] states, int[] actions, int count, int[] nextStates, double[] rewards) {
+        int[] neighbours = neighbourCells;
+        if (neighbours == null) {
+            neighbours = buildNeighbourCells();
+        }
+        int size = maze.size;
+        double probSuccess = 1.0 - PROB_ERROR * (4 - 1);
+        for (int i = 0; i < count; i++) {
+            int cell = states[i];
+            int nextCell;
+            double transitionReward;
+            if (actions[i] == MazeAction.DIVE.ordinal()) {
+                // Any other hole, with the same probability (the agent stays if there is no other hole)
+                int excluded = maze.holeNumber[cell];
+                if (holeCells.length == 1) {
+                    nextCell = cell;
+                } else {
+                    int selected = Utils.random.nextInt(holeCells.length - 1);
+                    nextCell = holeCells[selected < excluded ? selected : selected + 1];
+                }
+                int dx = nextCell / size - cell / size, dy = nextCell % size - cell % size;
+                transitionReward = -Math.sqrt(dx * dx + dy * dy) * 0.5;
+            } else {
+                int direction = MOVE_DIRECTIONS[actions[i]];
+                double randUniform = Utils.random.nextDouble();
+                if (randUniform >= probSuccess) {
+                    // One of the other three directions, in order
+                    int other = Math.min(2, (int) ((randUniform - probSuccess) / PROB_ERROR));
+                    direction = (other < direction) ? other : other + 1;
+                }
+                nextCell = neighbours[cell * 4 + direction];
+                // The distance is 1 if the agent moves, doubled in water
+                transitionReward = (nextCell == cell) ? 0 : ((maze.cells[cell / size][cell % size] == Maze.WATER) ? -2 : -1);
+            }
+            nextStates[i] = nextCell;
+            rewards[i] = maze.rewards[nextCell] + transitionReward;
+        }
+    }
+
+    /**
+     * Builds the cells reached from each cell moving in each direction, and the cells of the holes.
+     */
+    private int[] buildNeighbourCells() {
+        int size = maze.size;
+        int[] neighbours = new int[size * size * 4];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int cell = maze.cellIndex(x, y);
+                neighbours[cell * 4] = (y > 0 && maze.cells[x][y - 1] != Maze.WALL) ? maze.cellIndex(x, y - 1) : cell;
+                neighbours[cell * 4 + 1] = (y < size - 1 && maze.cells[x][y + 1] != Maze.WALL) ? maze.cellIndex(x, y + 1) : cell;
+                neighbours[cell * 4 + 2] = (x > 0 && maze.cells[x - 1][y] != Maze.WALL) ? maze.cellIndex(x - 1, y) : cell;
+                neighbours[cell * 4 + 3] = (x < size - 1 && maze.cells[x + 1][y] != Maze.WALL) ? maze.cellIndex(x + 1, y) : cell;
+            }
+        }
+        int[] holes = new int[maze.holeStates.length];
+        for (int hole = 0; hole < holes.length; hole++) {
+            holes[hole] = maze.cellIndex(maze.holeStates[hole].X(), maze.holeStates[hole].Y());
+        }
+        holeCells = holes;
+        neighbourCells = neighbours;
+        return neighbours;
+    }
+
     // Utilities
     /**
      * Returns a random state.
@@ -291,7 +456,7 @@ public class MazeProblemMF extends MFLearningProblem implements MazeProblem, Pro
                 validCell = true;
             }
         } while (!validCell);
-        return new MazeState(posX, posY);
+        return maze.state(posX, posY);
     }
 
     /**
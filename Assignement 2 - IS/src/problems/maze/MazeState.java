@@ -10,12 +10,21 @@ public class MazeState extends State {
 	
 	/** An state is a position given by the coordinates (y,x) and the number of bites. */
 	protected Position position;
+	
+	/** Index of the cell in the maze. Only states created by the maze have it (otherwise, it is -1). */
+	protected int cell = -1;
 
 	/** Constructor. Receives the pair of coordinates represented by the state. */
 	public MazeState(int x, int y){
 		position = new Position(x, y);
 	}
 	
+	/** Constructor used by the maze to create the unique state of each cell. */
+	MazeState(int x, int y, int cell){
+		position = new Position(x, y);
+		this.cell = cell;
+	}
+	
 	/** Constructor. Receives a MazePosition */
 	public MazeState(Position position){
 		this.position = new Position(position.x,position.y);
@@ -32,18 +41,24 @@ public class MazeState extends State {
 	/** Returns the coordinate y. */
 	public int Y(){ return position.y; }
 	
+	/** Returns the index of the cell in the maze (-1 if the state was not created by the maze). */
+	public int cell(){ return cell; }
+	
 	/** 
 	 * Checks if two states are similar. The method overrides the one provided by the Object class
 	 * and is used by some classes in Java. For instance, the method HashSet.contains makes use of equals.
 	 */
 	@Override
 	public boolean equals(Object anotherState){
+		// States created by the maze are unique, so most comparisons end here.
+		if (this==anotherState)
+			return true;
 		// If the object passed as parameter is not a state, returns false and reports an error
 		if (!(anotherState instanceof MazeState)){
 			System.out.println("Trying to compare two objects of different classes.");
 			return false;
 		}
-		// If the two objects have the same class, compares their positions.
+		// Compares the positions. Cell indexes depend on the size of the maze, so states of different mazes could share them.
 		return this.position().equals(((MazeState)anotherState).position());	
 	}
 
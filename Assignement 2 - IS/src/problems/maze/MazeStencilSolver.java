@@ -0,0 +1,579 @@
+package problems.maze;
+
+import java.util.Arrays;
+
+import learning.Action;
+import learning.StencilSolver;
+
+/**
+ * Value iteration specialised for MazeProblemMDP. Movements in the maze only reach the four
+ * neighbours of a cell, and diving reaches all the other holes with the same probability, so
+ * the transition model is a stencil over the grid plus a uniform hole term. This class works
+ * directly on the cells as flat arrays (indexed by Maze.cellIndex), with a precomputed mask of
+ * the open neighbours of each cell, and the probabilities used by the transition model of the
+ * problem (PROB_ERROR for each unintended neighbour, and the rest for the intended one).
+ * The hole term only needs the sum of the utilities of the holes, calculated once per sweep.
+ *
+ * Sweeps are synchronous (Jacobi) and visit the cells in the order of the arrays. Each cell is read and
+ * written once per sweep, so the sweep streams through the arrays. The arithmetic is the same as in TransitionMatrix, so utilities
+ * and policies are identical to the ones of ValueIteration, but the model is never compiled.
+ *
+ * There is also a vector kernel (see sweepVector), which works on arrays padded with a border of
+ * empty cells and has no branches, so the JIT compiler can use SIMD instructions for it. It gives
+ * the same utilities as the scalar kernel, and it is not used if there is only one hole (diving
+ * would divide by zero in the cells that are not holes).
+ */
+public class MazeStencilSolver implements StencilSolver {
+
+    /**
+     * Bits of the mask of open neighbours.
+     */
+    private static final int UP = 1, DOWN = 2, LEFT = 4, RIGHT = 8;
+
+    /**
+     * Problem and maze.
+     */
+    private final MazeProblemMDP problem;
+    private final Maze maze;
+    private final int size;
+
+    /**
+     * Open neighbours of each cell (mask of UP, DOWN, LEFT and RIGHT).
+     */
+    private final byte[] openNeighbours;
+
+    /**
+     * Whether each cell is a non final state whose utility is updated by the sweeps.
+     */
+    private final boolean[] updated;
+
+    /**
+     * Reward of each cell, reward of the movements from each cell (all the neighbours are at
+     * the same distance) and probability of reaching the intended neighbour.
+     */
+    private final double[] rewards;
+    private final double[] moveRewards;
+    private final double[] probSuccess;
+
+    /**
+     * Cell of each hole, and sum of the rewards of diving from each hole to the other ones.
+     */
+    private final int[] holeCells;
+    private final double[] diveRewards;
+
+    /**
+     * Gamma, gamma times the probabilities of the movements, utilities of the cells, sum of the utilities of the holes and number of sweeps of the last solve.
+     */
+    private double gamma;
+    private double gammaError;
+    private double[] gammaSuccess;
+    private double[] utilities;
+    private double holeSum;
+    private int numSweeps;
+
+    /**
+     * Arrays of the vector kernel, indexed by padded cell ((x+1)*(size+2)+(y+1)), built the first time it is used.
+     * For each cell: reward added to the expected utilities of the actions (0 if the cell is not updated),
+     * reward added to the backup (the fixed utility if the cell is not updated), reward of the movements,
+     * whether each neighbour is open (1 or 0) and penalty of each movement (0 if it can be done,
+     * -infinity otherwise), sum of the rewards of diving and penalty of diving.
+     * Cells that are not updated can only do a fake movement with utility 0, so their backup keeps them unchanged.
+     */
+    private double[] padActionRewards, padRewards, padMoveRewards;
+    private double[] openUp, openDown, openLeft, openRight;
+    private double[] penaltyUp, penaltyDown, penaltyLeft, penaltyRight;
+    private double[] padDiveRewards, penaltyDive;
+    private double[] padGammaSuccess;
+
+    /**
+     * Precomputes the masks and coefficients of the cells of the maze of the problem.
+     */
+    public MazeStencilSolver(MazeProblemMDP problem) {
+        this.problem = problem;
+        this.maze = problem.getMaze();
+        this.size = maze.size;
+        int numCells = size * size;
+        openNeighbours = new byte[numCells];
+        updated = new boolean[numCells];
+        rewards = new double[numCells];
+        moveRewards = new double[numCells];
+        probSuccess = new double[numCells];
+
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int cell = maze.cellIndex(x, y);
+                if (maze.cells[x][y] == Maze.WALL) {
+                    continue;
+                }
+                int mask = 0, numOpen = 0;
+                MazeState neighbour = null;
+                if (y > 0 && maze.cells[x][y - 1] != Maze.WALL) {
+                    mask |= UP;
+                    numOpen++;
+                    neighbour = maze.state(x, y - 1);
+                }
+                if (y < size - 1 && maze.cells[x][y + 1] != Maze.WALL) {
+                    mask |= DOWN;
+                    numOpen++;
+                    neighbour = maze.state(x, y + 1);
+                }
+                if (x > 0 && maze.cells[x - 1][y] != Maze.WALL) {
+                    mask |= LEFT;
+                    numOpen++;
+                    neighbour = maze.state(x - 1, y);
+                }
+                if (x < size - 1 && maze.cells[x + 1][y] != Maze.WALL) {
+                    mask |= RIGHT;
+                    numOpen++;
+                    neighbour = maze.state(x + 1, y);
+                }
+                openNeighbours[cell] = (byte) mask;
+                rewards[cell] = maze.reward(x, y);
+                probSuccess[cell] = 1.0 - MazeProblemMDP.PROB_ERROR * (numOpen - 1);
+                if (neighbour != null) {
+                    moveRewards[cell] = problem.getTransitionReward(maze.state(x, y), MazeAction.UP, neighbour);
+                }
+                updated[cell] = !maze.isFinal(x, y) && problem.getPossibleActionArray(maze.state(x, y)).length > 0;
+            }
+        }
+
+        /* Holes, in the order of the uniform transition model */
+        MazeState[] holes = maze.holeStates;
+        holeCells = new int[holes.length];
+        diveRewards = new double[holes.length];
+        for (int hole = 0; hole < holes.length; hole++) {
+            holeCells[hole] = maze.cellIndex(holes[hole].X(), holes[hole].Y());
+            for (int other = 0; other < holes.length; other++) {
+                if (other != hole) {
+                    diveRewards[hole] += problem.getTransitionReward(holes[hole], MazeAction.DIVE, holes[other]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs value iteration until the maximum change of a sweep is lower than maxDelta. Returns the
+     * utilities of the cells (final cells have their reward, and the remaining ones start at 0).
+     */
+    public double[] solve(double gamma, double maxDelta) {
+        return solve(gamma, maxDelta, false);
+    }
+
+    /**
+     * Runs value iteration with the scalar kernel or, if vector is true and the maze allows it, the vector kernel.
+     */
+    public double[] solve(double gamma, double maxDelta, boolean vector) {
+        this.gamma = gamma;
+        int numCells = size * size;
+        gammaError = gamma * MazeProblemMDP.PROB_ERROR;
+        gammaSuccess = new double[numCells];
+        for (int cell = 0; cell < numCells; cell++) {
+            gammaSuccess[cell] = gamma * probSuccess[cell];
+        }
+        double[] current = new double[numCells];
+        for (int cell = 0; cell < numCells; cell++) {
+            current[cell] = updated[cell] ? 0 : rewards[cell];
+        }
+        if (vector && holeCells.length != 1) {
+            utilities = solveVector(current, maxDelta);
+            holeSum = sumHoles(utilities);
+            return utilities;
+        }
+        double[] next = current.clone(); // Cells that are not updated keep their value in both arrays
+        double[] aux;
+        double delta;
+        numSweeps = 0;
+        do {
+            delta = sweep(current, next);
+            aux = current;
+            current = next;
+            next = aux;
+            numSweeps++;
+        } while (delta >= maxDelta);
+        utilities = current;
+        holeSum = sumHoles(utilities);
+        return utilities;
+    }
+
+    /**
+     * Runs value iteration (see solve), and returns the utilities of the states of the problem.
+     */
+    @Override
+    public double[] solveStates(double gamma, double maxDelta, boolean vector) {
+        double[] cellUtilities = solve(gamma, maxDelta, vector);
+        double[] stateUtilities = new double[problem.getNumStates()];
+        for (int stateIdx = 0; stateIdx < stateUtilities.length; stateIdx++) {
+            MazeState state = (MazeState) problem.getState(stateIdx);
+            stateUtilities[stateIdx] = cellUtilities[maze.cellIndex(state.X(), state.Y())];
+        }
+        return stateUtilities;
+    }
+
+    /**
+     * Runs value iteration with the vector kernel, starting from the given utilities of the cells.
+     */
+    private double[] solveVector(double[] initial, double maxDelta) {
+        if (padRewards == null) {
+            buildPaddedArrays();
+        }
+        int width = size + 2;
+        padGammaSuccess = new double[width * width];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                padGammaSuccess[(x + 1) * width + y + 1] = gammaSuccess[x * size + y];
+            }
+        }
+        double[] current = padRewards.clone(); // Initially, the utility of the updated cells is 0
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                current[(x + 1) * width + y + 1] = initial[x * size + y];
+            }
+        }
+        double[] next = current.clone();
+        double[] aux;
+        double delta;
+        numSweeps = 0;
+        do {
+            delta = sweepVector(current, next, sumHolesPadded(current));
+            aux = current;
+            current = next;
+            next = aux;
+            numSweeps++;
+        } while (delta >= maxDelta);
+
+        /* Removes the border */
+        double[] cellUtilities = new double[size * size];
+        for (int x = 0; x < size; x++) {
+            System.arraycopy(current, (x + 1) * width + 1, cellUtilities, x * size, size);
+        }
+        return cellUtilities;
+    }
+
+    /**
+     * Vector kernel. Every padded cell between the first and the last row of the maze is processed in
+     * the same way, without branches: the terms of closed neighbours are multiplied by 0, and the
+     * actions that can not be done get a penalty of -infinity. Terms are added in the same order as
+     * in the scalar kernel, so the result is the same. Returns the maximum change.
+     */
+    private double sweepVector(double[] current, double[] next, double sum) {
+        int width = size + 2;
+        double error = gammaError, holesMinusOne = holeCells.length - 1;
+        double delta = 0;
+        for (int cell = width; cell < width * (size + 1); cell++) {
+            double moveReward = padMoveRewards[cell], success = padGammaSuccess[cell], reward = padActionRewards[cell];
+            double targetUp = moveReward + current[cell - 1];
+            double targetDown = moveReward + current[cell + 1];
+            double targetLeft = moveReward + current[cell - width];
+            double targetRight = moveReward + current[cell + width];
+            double oUp = openUp[cell], oDown = openDown[cell], oLeft = openLeft[cell], oRight = openRight[cell];
+            double up = reward + (success * oUp) * targetUp + (error * oDown) * targetDown + (error * oLeft) * targetLeft + (error * oRight) * targetRight;
+            double down = reward + (error * oUp) * targetUp + (success * oDown) * targetDown + (error * oLeft) * targetLeft + (error * oRight) * targetRight;
+            double left = reward + (error * oUp) * targetUp + (error * oDown) * targetDown + (success * oLeft) * targetLeft + (error * oRight) * targetRight;
+            double right = reward + (error * oUp) * targetUp + (error * oDown) * targetDown + (error * oLeft) * targetLeft + (success * oRight) * targetRight;
+            double dive = reward + gamma * (padDiveRewards[cell] + (sum - current[cell])) / holesMinusOne;
+            double best = Math.max(Math.max(Math.max(up + penaltyUp[cell], down + penaltyDown[cell]),
+                    Math.max(left + penaltyLeft[cell], right + penaltyRight[cell])), dive + penaltyDive[cell]);
+            double newUtility = padRewards[cell] + gamma * best;
+            next[cell] = newUtility;
+            delta = Math.max(delta, Math.abs(newUtility - current[cell]));
+        }
+        return delta;
+    }
+
+    /**
+     * Builds the arrays of the vector kernel.
+     */
+    private void buildPaddedArrays() {
+        int width = size + 2, numPadded = width * width;
+        padActionRewards = new double[numPadded];
+        padRewards = new double[numPadded];
+        padMoveRewards = new double[numPadded];
+        openUp = new double[numPadded];
+        openDown = new double[numPadded];
+        openLeft = new double[numPadded];
+        openRight = new double[numPadded];
+        penaltyUp = new double[numPadded];
+        penaltyDown = new double[numPadded];
+        penaltyLeft = new double[numPadded];
+        penaltyRight = new double[numPadded];
+        padDiveRewards = new double[numPadded];
+        penaltyDive = new double[numPadded];
+        // By default (border, walls, final cells...), the only action is a fake movement with utility 0.
+        Arrays.fill(penaltyDown, Double.NEGATIVE_INFINITY);
+        Arrays.fill(penaltyLeft, Double.NEGATIVE_INFINITY);
+        Arrays.fill(penaltyRight, Double.NEGATIVE_INFINITY);
+        Arrays.fill(penaltyDive, Double.NEGATIVE_INFINITY);
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int cell = x * size + y, padded = (x + 1) * width + y + 1;
+                if (!updated[cell]) {
+                    padRewards[padded] = rewards[cell];
+                    continue;
+                }
+                int mask = openNeighbours[cell];
+                padActionRewards[padded] = rewards[cell];
+                padRewards[padded] = rewards[cell];
+                padMoveRewards[padded] = moveRewards[cell];
+                openUp[padded] = ((mask & UP) != 0) ? 1 : 0;
+                openDown[padded] = ((mask & DOWN) != 0) ? 1 : 0;
+                openLeft[padded] = ((mask & LEFT) != 0) ? 1 : 0;
+                openRight[padded] = ((mask & RIGHT) != 0) ? 1 : 0;
+                penaltyUp[padded] = ((mask & UP) != 0) ? 0 : Double.NEGATIVE_INFINITY;
+                penaltyDown[padded] = ((mask & DOWN) != 0) ? 0 : Double.NEGATIVE_INFINITY;
+                penaltyLeft[padded] = ((mask & LEFT) != 0) ? 0 : Double.NEGATIVE_INFINITY;
+                penaltyRight[padded] = ((mask & RIGHT) != 0) ? 0 : Double.NEGATIVE_INFINITY;
+                int hole = maze.holeNumber[cell];
+                if (hole >= 0) {
+                    padDiveRewards[padded] = diveRewards[hole];
+                    penaltyDive[padded] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sum of the utilities of the holes, given the padded utilities.
+     */
+    private double sumHolesPadded(double[] current) {
+        double sum = 0;
+        for (int holeCell : holeCells) {
+            sum += current[(holeCell / size + 1) * (size + 2) + holeCell % size + 1];
+        }
+        return sum;
+    }
+
+    /**
+     * Calculates the new utilities (next) from the current ones. Returns the maximum change.
+     */
+    private double sweep(double[] current, double[] next) {
+        double sum = sumHoles(current);
+        double delta = 0;
+        for (int cell = 0; cell < size * size; cell++) {
+            if (updated[cell]) {
+                double newUtility = backup(cell, current, sum);
+                next[cell] = newUtility;
+                if (Math.abs(newUtility - current[cell]) > delta) {
+                    delta = Math.abs(newUtility - current[cell]);
+                }
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Bellman backup of a cell: R(s) + gamma * (highest expected utility of its actions).
+     */
+    private double backup(int cell, double[] current, double sum) {
+        int mask = openNeighbours[cell];
+        double success = gammaSuccess[cell], moveReward = moveRewards[cell];
+        double reward = rewards[cell];
+
+        /* Each neighbour adds its term to the four movements at once (gamma * p is precomputed) */
+        double up = reward, down = reward, left = reward, right = reward;
+        if ((mask & UP) != 0) {
+            double target = moveReward + current[cell - 1];
+            up += success * target;
+            down += gammaError * target;
+            left += gammaError * target;
+            right += gammaError * target;
+        }
+        if ((mask & DOWN) != 0) {
+            double target = moveReward + current[cell + 1];
+            up += gammaError * target;
+            down += success * target;
+            left += gammaError * target;
+            right += gammaError * target;
+        }
+        if ((mask & LEFT) != 0) {
+            double target = moveReward + current[cell - size];
+            up += gammaError * target;
+            down += gammaError * target;
+            left += success * target;
+            right += gammaError * target;
+        }
+        if ((mask & RIGHT) != 0) {
+            double target = moveReward + current[cell + size];
+            up += gammaError * target;
+            down += gammaError * target;
+            left += gammaError * target;
+            right += success * target;
+        }
+
+        /* Only the movements towards open neighbours can be done */
+        double best = Double.NEGATIVE_INFINITY;
+        if ((mask & UP) != 0) {
+            best = max(best, up);
+        }
+        if ((mask & DOWN) != 0) {
+            best = max(best, down);
+        }
+        if ((mask & LEFT) != 0) {
+            best = max(best, left);
+        }
+        if ((mask & RIGHT) != 0) {
+            best = max(best, right);
+        }
+        int hole = maze.holeNumber[cell];
+        if (hole >= 0) {
+            best = max(best, diveUtility(cell, hole, current, sum));
+        }
+        return reward + gamma * best;
+    }
+
+    /**
+     * Maximum of two utilities. As in the generic solvers, a utility only replaces the best one if it is greater.
+     */
+    private static double max(double best, double utility) {
+        return (utility > best) ? utility : best;
+    }
+
+    /**
+     * Expected utility of moving towards a neighbour (the terms are added in the order of the transition model).
+     */
+    private double moveUtility(int cell, int direction, double[] current) {
+        int mask = openNeighbours[cell];
+        double success = probSuccess[cell], moveReward = moveRewards[cell];
+        double utility = rewards[cell];
+        if ((mask & UP) != 0) {
+            utility += gamma * (direction == UP ? success : MazeProblemMDP.PROB_ERROR) * (moveReward + current[cell - 1]);
+        }
+        if ((mask & DOWN) != 0) {
+            utility += gamma * (direction == DOWN ? success : MazeProblemMDP.PROB_ERROR) * (moveReward + current[cell + 1]);
+        }
+        if ((mask & LEFT) != 0) {
+            utility += gamma * (direction == LEFT ? success : MazeProblemMDP.PROB_ERROR) * (moveReward + current[cell - size]);
+        }
+        if ((mask & RIGHT) != 0) {
+            utility += gamma * (direction == RIGHT ? success : MazeProblemMDP.PROB_ERROR) * (moveReward + current[cell + size]);
+        }
+        return utility;
+    }
+
+    /**
+     * Expected utility of diving from a hole (the other holes are reached with the same probability).
+     * If there are no other holes, the model is empty, and the utility is the reward of the cell.
+     */
+    private double diveUtility(int cell, int hole, double[] current, double sum) {
+        if (holeCells.length == 1) {
+            return rewards[cell];
+        }
+        return rewards[cell] + gamma * (diveRewards[hole] + (sum - current[cell])) / (holeCells.length - 1);
+    }
+
+    /**
+     * Sum of the utilities of the holes.
+     */
+    private double sumHoles(double[] current) {
+        double sum = 0;
+        for (int holeCell : holeCells) {
+            sum += current[holeCell];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the action with the highest expected utility in a cell, given the utilities of the last
+     * solve (the first one in the order of the possible actions of the problem, in case of ties).
+     */
+    public Action bestAction(int x, int y) {
+        int cell = maze.cellIndex(x, y);
+        Action bestAction = null;
+        double best = Double.NEGATIVE_INFINITY;
+        for (Action action : problem.getPossibleActionArray(maze.state(x, y))) {
+            double utility;
+            if (action == MazeAction.DIVE) {
+                utility = diveUtility(cell, maze.holeNumber[cell], utilities, holeSum);
+            } else if (action == MazeAction.UP) {
+                utility = moveUtility(cell, UP, utilities);
+            } else if (action == MazeAction.DOWN) {
+                utility = moveUtility(cell, DOWN, utilities);
+            } else if (action == MazeAction.LEFT) {
+                utility = moveUtility(cell, LEFT, utilities);
+            } else {
+                utility = moveUtility(cell, RIGHT, utilities);
+            }
+            if (utility > best) {
+                best = utility;
+                bestAction = action;
+            }
+        }
+        return bestAction;
+    }
+
+    /**
+     * Returns the action with the highest expected utility in the cell of a state (null for final states).
+     */
+    @Override
+    public Action bestAction(int stateIdx) {
+        MazeState state = (MazeState) problem.getState(stateIdx);
+        return problem.isFinal(state) ? null : bestAction(state.X(), state.Y());
+    }
+
+    /**
+     * Number of sweeps of the last solve.
+     */
+    public int getNumSweeps() {
+        return numSweeps;
+    }
+
+    /**
+     * Main function. Allows testing the vector kernel: solves a maze (size and seed can be given as
+     * arguments) with both kernels, and checks that the utilities and the policy are the same. Also
+     * checks a maze with a single hole (size 8), where diving can not reach another hole.
+     */
+    public static void main(String[] args) {
+        int size = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int seed = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        boolean correct = checkKernels(size, seed);
+        correct &= checkKernels(8, seed);
+        System.out.println(correct ? "OK" : "ERROR");
+    }
+
+    /**
+     * Solves a maze with both kernels, and returns whether the utilities (which must be numbers) and the policy are the same.
+     */
+    private static boolean checkKernels(int size, int seed) {
+        MazeProblemMDP mazeProblem = new MazeProblemMDP(size, seed);
+        MazeStencilSolver stencil = new MazeStencilSolver(mazeProblem);
+        System.out.println("Maze of size " + size + " with " + stencil.holeCells.length + " holes");
+        long start = System.currentTimeMillis();
+        double[] scalarUtilities = stencil.solve(0.9, 0.0001, false).clone();
+        Action[] scalarPolicy = new Action[size * size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                if (stencil.updated[x * size + y]) {
+                    scalarPolicy[x * size + y] = stencil.bestAction(x, y);
+                }
+            }
+        }
+        System.out.println("Scalar kernel: " + stencil.getNumSweeps() + " sweeps, " + (System.currentTimeMillis() - start) + " ms");
+        start = System.currentTimeMillis();
+        double[] vectorUtilities = stencil.solve(0.9, 0.0001, true);
+        System.out.println("Vector kernel: " + stencil.getNumSweeps() + " sweeps, " + (System.currentTimeMillis() - start) + " ms");
+
+        double maxDifference = 0;
+        int differentActions = 0, undefinedUtilities = 0;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int cell = x * size + y;
+                maxDifference = Math.max(maxDifference, Math.abs(scalarUtilities[cell] - vectorUtilities[cell]));
+                if (Double.isNaN(scalarUtilities[cell]) || Double.isNaN(vectorUtilities[cell])) {
+                    undefinedUtilities++;
+                }
+                if (stencil.updated[cell] && stencil.bestAction(x, y) != scalarPolicy[cell]) {
+                    differentActions++;
+                }
+            }
+        }
+        /* The utility of diving is not compared with the other actions if it is not a number, so it is checked by itself */
+        for (int hole = 0; hole < stencil.holeCells.length; hole++) {
+            if (Double.isNaN(stencil.diveUtility(stencil.holeCells[hole], hole, vectorUtilities, stencil.holeSum))) {
+                undefinedUtilities++;
+            }
+        }
+        System.out.println("Maximum difference of the utilities: " + maxDifference);
+        System.out.println("States with different actions: " + differentActions);
+        System.out.println("Utilities that are not a number: " + undefinedUtilities);
+        return maxDifference <= 1e-9 && differentActions == 0 && undefinedUtilities == 0;
+    }
+}
@@ -87,6 +87,10 @@ public class MDPExProblem extends MDPLearningProblem {
 		return posActions;
 	}	
 	
+	/** Returns all the actions of the problem. */
+	@Override
+	public Action[] getAllActions() { return MDPExAction.values(); }
+	
 	/** Returns the reward corresponding to a state */
 	@Override
 	public double getReward(State state) {
@@ -0,0 +1,119 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of the integers 0 ... capacity-1, each one with a priority. The position of each
+ * element in the heap is stored, so the priority of an element can be changed in O(log n) without
+ * searching it. Priorities and elements are stored in primitive arrays (no boxing).
+ */
+public class IndexedMaxHeap{
+
+	/* Elements of the heap (the first size positions are used). */
+	private int[] heap;
+
+	/* Position of each element in the heap (-1 if it is not in the heap). */
+	private int[] position;
+
+	/* Priority of each element. */
+	private double[] priority;
+
+	/* Number of elements in the heap. */
+	private int size = 0;
+
+	/** Creates an empty heap for the elements 0 ... capacity-1. */
+	public IndexedMaxHeap(int capacity){
+		heap = new int[capacity];
+		position = new int[capacity];
+		priority = new double[capacity];
+		Arrays.fill(position, -1);
+	}
+
+	/** Whether the heap is empty. */
+	public boolean isEmpty(){ return size==0; }
+
+	/** Number of elements in the heap. */
+	public int size(){ return size; }
+
+	/** Whether the element is in the heap. */
+	public boolean contains(int element){ return position[element]>=0; }
+
+	/** Priority of the element with the highest priority. The heap must not be empty. */
+	public double maxPriority(){ return priority[heap[0]]; }
+
+	/** Inserts an element, or changes its priority if it is already in the heap. */
+	public void put(int element, double newPriority){
+		if (position[element]<0){
+			heap[size] = element;
+			position[element] = size++;
+			priority[element] = newPriority;
+			siftUp(position[element]);
+		}
+		else{
+			double oldPriority = priority[element];
+			priority[element] = newPriority;
+			if (newPriority>oldPriority)
+				siftUp(position[element]);
+			else
+				siftDown(position[element]);
+		}
+	}
+
+	/** Removes an element, if it is in the heap. */
+	public void remove(int element){
+		int pos = position[element];
+		if (pos<0)
+			return;
+		position[element] = -1;
+		size--;
+		if (pos==size)
+			return;
+		// The last element takes its position.
+		int last = heap[size];
+		heap[pos] = last;
+		position[last] = pos;
+		siftUp(pos);
+		siftDown(position[last]);
+	}
+
+	/** Removes and returns the element with the highest priority. The heap must not be empty. */
+	public int poll(){
+		int first = heap[0];
+		remove(first);
+		return first;
+	}
+
+	/** Moves up the element at a position until its parent has higher or equal priority. */
+	private void siftUp(int pos){
+		int element = heap[pos];
+		while (pos>0){
+			int parent = (pos-1)>>>1;
+			if (priority[heap[parent]]>=priority[element])
+				break;
+			heap[pos] = heap[parent];
+			position[heap[pos]] = pos;
+			pos = parent;
+		}
+		heap[pos] = element;
+		position[element] = pos;
+	}
+
+	/** Moves down the element at a position until its children have lower or equal priority. */
+	private void siftDown(int pos){
+		int element = heap[pos];
+		while (true){
+			int child = 2*pos+1;
+			if (child>=size)
+				break;
+			if (child+1<size && priority[heap[child+1]]>priority[heap[child]])
+				child++;
+			if (priority[heap[child]]<=priority[element])
+				break;
+			heap[pos] = heap[child];
+			position[heap[pos]] = pos;
+			pos = child;
+		}
+		heap[pos] = element;
+		position[element] = pos;
+	}
+}
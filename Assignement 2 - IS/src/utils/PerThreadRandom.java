@@ -0,0 +1,52 @@
+package utils;
+
+import java.util.Random;
+
+/**
+ * Random generator that keeps an independent generator for each thread, so several threads can
+ * use it at the same time without sharing (and contending for) a single seed. Setting the seed
+ * only affects the generator of the calling thread.
+ */
+public class PerThreadRandom extends Random{
+
+	private static final long serialVersionUID = 1L;
+
+	/* Generator of each thread. */
+	private final transient ThreadLocal<Random> generators = ThreadLocal.withInitial(Random::new);
+
+	/** Sets the seed of the generator of the calling thread. */
+	@Override
+	public void setSeed(long seed){
+		// The constructor of Random calls this method before the generators are created.
+		if (generators==null)
+			super.setSeed(seed);
+		else
+			generators.get().setSeed(seed);
+	}
+
+	@Override
+	protected int next(int bits){
+		return generators.get().nextInt()>>>(32-bits);
+	}
+
+	@Override
+	public int nextInt(){ return generators.get().nextInt(); }
+
+	@Override
+	public int nextInt(int bound){ return generators.get().nextInt(bound); }
+
+	@Override
+	public long nextLong(){ return generators.get().nextLong(); }
+
+	@Override
+	public boolean nextBoolean(){ return generators.get().nextBoolean(); }
+
+	@Override
+	public float nextFloat(){ return generators.get().nextFloat(); }
+
+	@Override
+	public double nextDouble(){ return generators.get().nextDouble(); }
+
+	@Override
+	public double nextGaussian(){ return generators.get().nextGaussian(); }
+}
@@ -5,7 +5,65 @@ import java.util.Random;
 /** Contains some utility objects and functions. */
 public class Utils{
 	
-	/** Random generator */
-	public static Random random = new Random();
+	/** Random generator (each thread uses its own generator, see PerThreadRandom) */
+	public static Random random = new PerThreadRandom();
 	
+	/** 
+	 * Builds the table used by the alias method (Walker/Vose) to sample from the discrete 
+	 * distribution probs[offset] ... probs[offset+n-1] with a single random number. For each 
+	 * slot i, aliasProbs[offset+i] is the probability of keeping i, and aliases[offset+i] 
+	 * the slot (between 0 and n-1) returned otherwise. 
+	 */
+	public static void buildAliasTable(double[] probs, int offset, int n, double[] aliasProbs, int[] aliases){
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		// Probabilities are normalized, as they may not sum exactly one.
+		double sum = 0;
+		for (int i=0;i<n;i++)
+			sum += probs[offset+i];
+		for (int i=0;i<n;i++){
+			scaled[i] = probs[offset+i]*n/sum;
+			if (scaled[i]<1)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		// Each small slot is filled with part of a large one.
+		while (numSmall>0 && numLarge>0){
+			int lessProb = small[--numSmall];
+			int moreProb = large[--numLarge];
+			aliasProbs[offset+lessProb] = scaled[lessProb];
+			aliases[offset+lessProb] = moreProb;
+			scaled[moreProb] = (scaled[moreProb]+scaled[lessProb])-1;
+			if (scaled[moreProb]<1)
+				small[numSmall++] = moreProb;
+			else
+				large[numLarge++] = moreProb;
+		}
+		// The remaining slots (only due to rounding errors in some cases) are full.
+		while (numLarge>0){
+			int slot = large[--numLarge];
+			aliasProbs[offset+slot] = 1;
+			aliases[offset+slot] = slot;
+		}
+		while (numSmall>0){
+			int slot = small[--numSmall];
+			aliasProbs[offset+slot] = 1;
+			aliases[offset+slot] = slot;
+		}
+	}
+	
+	/** 
+	 * Samples a slot (between 0 and n-1) of a distribution given its alias table, built with
+	 * buildAliasTable. Needs a single random number and one comparison. 
+	 */
+	public static int sampleAlias(int offset, int n, double[] aliasProbs, int[] aliases){
+		double randUniform = random.nextDouble()*n;
+		int slot = (int) randUniform;
+		if (slot>=n)
+			slot = n-1;
+		return (randUniform-slot<aliasProbs[offset+slot]) ? slot : aliases[offset+slot];
+	}
 }